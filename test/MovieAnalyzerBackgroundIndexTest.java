@@ -0,0 +1,82 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the indexes built in the background and of the queries running while the dataset
+ * changes.
+ */
+public class MovieAnalyzerBackgroundIndexTest {
+    private static final String DATASET = "resources/imdb_top_500.csv";
+
+    @Test
+    void resultsDoNotDependOnReadiness() {
+        MovieAnalyzer loading = new MovieAnalyzer(DATASET);
+        List<String> search = loading.searchMovies("Drama", 8.0f, 150);
+        List<String> topStars = loading.getTopStars(10, "rating");
+        loading.awaitReady();
+        for (MovieAnalyzer.IndexKind kind : MovieAnalyzer.IndexKind.values()) {
+            assertTrue(loading.isIndexReady(kind), kind + " index is not ready");
+        }
+        MovieAnalyzer ready = new MovieAnalyzer(DATASET);
+        ready.awaitReady();
+        assertEquals(search, ready.searchMovies("Drama", 8.0f, 150));
+        assertEquals(topStars, ready.getTopStars(10, "rating"));
+    }
+
+    @Test
+    void streamSeesTheDatasetAsItWasCalled() throws Exception {
+        MovieAnalyzer analyzer = new MovieAnalyzer(DATASET);
+        analyzer.awaitReady();
+        List<String> expected = analyzer.searchMovies("Drama", 8.0f, 150);
+        Stream<String> titles = analyzer.searchMoviesStream("Drama", 8.0f, 150);
+        MovieAnalyzer.SearchPage page = analyzer.searchMovies("Drama", 8.0f, 150, 5, null);
+        analyzer.addMovies(DATASET);
+        assertEquals(expected, titles.toList());
+        assertEquals(expected.subList(0, 5), page.titles());
+        assertEquals(2 * expected.size(), analyzer.searchMovies("Drama", 8.0f, 150).size());
+    }
+
+    @Test
+    void searchesRunWhileMoviesAreAddedAndIndexesRefused() throws Exception {
+        MovieAnalyzer analyzer = new MovieAnalyzer(DATASET);
+        analyzer.awaitReady();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            try {
+                for (int i = 0; i < 10; i++) {
+                    analyzer.addMovies(DATASET);
+                    analyzer.setMemoryBudget(i % 2 == 0 ? 0 : Long.MAX_VALUE);
+                }
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        });
+        while (!writer.isDone()) {
+            try {
+                List<String> titles = analyzer.searchMoviesStream("Drama", 8.0f, 150).toList();
+                List<String> sorted = new ArrayList<>(titles);
+                Collections.sort(sorted);
+                assertEquals(sorted, titles);
+                String cursor = null;
+                do {
+                    MovieAnalyzer.SearchPage page = analyzer.searchMovies("Drama", 8.0f, 150, 50,
+                            cursor);
+                    cursor = page.nextCursor();
+                } while (cursor != null);
+            } catch (Throwable e) {
+                errors.add(e);
+                break;
+            }
+        }
+        writer.get(1, TimeUnit.MINUTES);
+        assertTrue(errors.isEmpty(), errors.toString());
+    }
+}
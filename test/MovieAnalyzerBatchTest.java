@@ -0,0 +1,66 @@
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the batches of queries, which should give the results of the queries run one by one.
+ */
+public class MovieAnalyzerBatchTest {
+    private static Path crafted;
+    private static MovieAnalyzer analyzer;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        String row = "p,%s,2000,A,%d min,\"%s\",8.0,%s,80,Director,S1,S2,S3,S4,1000,\"1,000\"";
+        crafted = MovieAnalyzerTestFiles.tempCsv("batch", List.of(
+                String.format(row, "Twice drama", 100, "Drama, Drama", "Short"),
+                String.format(row, "Drama and crime", 120, "Drama, Crime", "A longer overview"),
+                String.format(row, "Crime", 140, "Crime", "The longest overview of all")));
+        analyzer = new MovieAnalyzer(crafted.toString());
+        analyzer.awaitReady();
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        Files.delete(crafted);
+    }
+
+    @Test
+    void repeatedGenresMatchOnce() {
+        List<List<String>> results = analyzer.runBatch(List.of(
+                new MovieAnalyzer.SearchQuery("Drama", 7.0f, 150),
+                new MovieAnalyzer.SearchQuery("Crime", 7.0f, 150)));
+        assertEquals(List.of(analyzer.searchMovies("Drama", 7.0f, 150),
+                analyzer.searchMovies("Crime", 7.0f, 150)), results);
+        assertEquals(List.of("Drama and crime", "Twice drama"), results.get(0));
+    }
+
+    @Test
+    void topMoviesShareOneHeapPerCriterion() {
+        List<MovieAnalyzer.BatchQuery> queries = List.of(
+                new MovieAnalyzer.TopMoviesQuery(1, "runtime"),
+                new MovieAnalyzer.TopMoviesQuery(3, "runtime"),
+                new MovieAnalyzer.TopMoviesQuery(2, "overview"),
+                new MovieAnalyzer.TopMoviesQuery(0, "overview"),
+                new MovieAnalyzer.TopMoviesQuery(10, "runtime"));
+        List<List<String>> expected = queries.stream()
+                .map(query -> (MovieAnalyzer.TopMoviesQuery) query)
+                .map(top -> analyzer.getTopMovies(top.topK(), top.by())).toList();
+        assertEquals(expected, analyzer.runBatch(queries));
+    }
+
+    @Test
+    void negativeTopNumbersAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> analyzer.getTopMovies(-1, "runtime"));
+        assertThrows(IllegalArgumentException.class, () -> analyzer.runBatch(List.of(
+                new MovieAnalyzer.TopMoviesQuery(5, "runtime"),
+                new MovieAnalyzer.TopMoviesQuery(-1, "runtime"))));
+    }
+}
@@ -0,0 +1,92 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the result cache of the query methods.
+ */
+public class MovieAnalyzerCacheTest {
+    private static MovieAnalyzer imdbTop;
+    private static Method cached;
+
+    @BeforeAll
+    static void setUp() throws NoSuchMethodException {
+        imdbTop = new MovieAnalyzer("resources/imdb_top_500.csv");
+        cached = MovieAnalyzer.class.getDeclaredMethod("cached", String.class, Supplier.class,
+                Object[].class);
+        cached.setAccessible(true);
+    }
+
+    private static Object cached(String method, Supplier<Object> query) throws Throwable {
+        try {
+            return cached.invoke(imdbTop, method, query, new Object[0]);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test
+    void repeatedQueriesHitTheCache() {
+        long hits = imdbTop.getCacheStats().hits();
+        List<String> first = imdbTop.getTopMovies(10, "runtime");
+        assertSame(first, imdbTop.getTopMovies(10, "runtime"));
+        assertEquals(hits + 1, imdbTop.getCacheStats().hits());
+    }
+
+    @Test
+    void failedQueriesAreNotCached() throws Throwable {
+        AtomicInteger calls = new AtomicInteger();
+        Supplier<Object> query = () -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new StackOverflowError();
+            }
+            return List.of("result");
+        };
+        assertThrows(StackOverflowError.class, () -> cached("failing", query));
+        // the next caller runs the query again instead of waiting for the failed one
+        Object result = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cached("failing", query);
+            } catch (Throwable e) {
+                throw new AssertionError(e);
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("result"), result);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void cachedCoStarCountCannotBeModified() {
+        Map<List<String>, Integer> coStars = imdbTop.getCoStarCount();
+        List<String> pair = coStars.keySet().iterator().next();
+        assertThrows(UnsupportedOperationException.class, () -> pair.set(0, "ZZZ"));
+        assertThrows(UnsupportedOperationException.class, () -> coStars.put(pair, 0));
+        assertEquals(new MovieAnalyzer("resources/imdb_top_500.csv").getCoStarCount(),
+                imdbTop.getCoStarCount());
+        assertTrue(imdbTop.getCoStarCount().containsKey(pair));
+    }
+
+    @Test
+    void coStarCountIsASnapshot() throws Exception {
+        MovieAnalyzer analyzer = new MovieAnalyzer("resources/imdb_top_500.csv");
+        analyzer.awaitReady();
+        Map<List<String>, Integer> before = analyzer.getCoStarCount();
+        Map<List<String>, Integer> copy = Map.copyOf(before);
+        analyzer.addMovies("resources/imdb_top_500.csv");
+        Map<List<String>, Integer> after = analyzer.getCoStarCount();
+        assertEquals(copy, before);
+        assertEquals(before.keySet(), after.keySet());
+        before.forEach((pair, count) ->
+                assertEquals(Integer.valueOf(2 * count), after.get(pair), pair.toString()));
+    }
+}
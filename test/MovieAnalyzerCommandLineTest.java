@@ -0,0 +1,151 @@
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the command line runner of query files, which prints the results as JSON lines and a
+ * report on the standard error.
+ */
+public class MovieAnalyzerCommandLineTest {
+    private static final String DATASET = MovieAnalyzerTestFiles.DATASET;
+
+    private static Path directory;
+    private static Path queries;
+    private static MovieAnalyzer imdbTop;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        directory = Files.createTempDirectory("cli");
+        queries = directory.resolve("queries.txt");
+        Files.write(queries, List.of(
+                "# the top movies and stars",
+                "getTopMovies 3 runtime",
+                "",
+                "  getTopStars 2 rating  ",
+                "searchMovies Drama 8.9 200",
+                "noSuchMethod 1",
+                "getTopMovies 3"), StandardCharsets.UTF_8);
+        imdbTop = new MovieAnalyzer(DATASET);
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        MovieAnalyzerTestFiles.deleteDirectory(directory);
+    }
+
+    /**
+     * Runs the command line and returns its standard output and standard error.
+     */
+    private static String[] run(String... args) throws Exception {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+        try {
+            System.setOut(new PrintStream(outBytes, true, StandardCharsets.UTF_8));
+            System.setErr(new PrintStream(errBytes, true, StandardCharsets.UTF_8));
+            MovieAnalyzer.main(args);
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+        return new String[]{outBytes.toString(StandardCharsets.UTF_8),
+                errBytes.toString(StandardCharsets.UTF_8)};
+    }
+
+    /**
+     * Returns the result lines without their latencies, in the order of the query lines.
+     */
+    private static List<String> results(String out) {
+        return out.lines().map(line -> line.replaceFirst(",\"micros\":\\d+", ""))
+                .sorted(Comparator.comparingInt(line -> Integer.parseInt(
+                        line.substring("{\"line\":".length(), line.indexOf(',')))))
+                .toList();
+    }
+
+    private static String titles(List<String> titles) {
+        return titles.stream().map(title -> '"' + title.replace("\"", "\\\"") + '"')
+                .collect(Collectors.joining(",", "[", "]"));
+    }
+
+    @Test
+    void resultsArePrintedAsJsonLines() throws Exception {
+        String[] output = run(DATASET, queries.toString());
+        assertEquals(List.of(
+                "{\"line\":2,\"method\":\"getTopMovies\",\"result\":"
+                        + titles(imdbTop.getTopMovies(3, "runtime")) + "}",
+                "{\"line\":4,\"method\":\"getTopStars\",\"result\":"
+                        + titles(imdbTop.getTopStars(2, "rating")) + "}",
+                "{\"line\":5,\"method\":\"searchMovies\",\"result\":"
+                        + titles(imdbTop.searchMovies("Drama", 8.9f, 200)) + "}",
+                "{\"line\":6,\"method\":\"noSuchMethod\",\"error\":"
+                        + "\"java.lang.IllegalArgumentException: Unknown method: noSuchMethod\"}",
+                "{\"line\":7,\"method\":\"getTopMovies\",\"error\":"
+                        + "\"java.lang.IllegalArgumentException: getTopMovies takes 2"
+                        + " arguments\"}"),
+                results(output[0]));
+        assertTrue(output[1].contains("load: "), output[1]);
+        assertTrue(output[1].contains("(500 movies)"), output[1]);
+        assertTrue(output[1].contains("queries: 5 with 1 workers"), output[1]);
+        assertTrue(output[1].contains("latency ms: p50 "), output[1]);
+        assertTrue(output[1].contains("memory: MemoryUsage{"), output[1]);
+    }
+
+    @Test
+    void workersGiveTheSameResults() throws Exception {
+        List<String> expected = results(run(DATASET, queries.toString())[0]);
+        String[] output = run("--workers", "4", DATASET, queries.toString());
+        assertEquals(expected, results(output[0]));
+        assertTrue(output[1].contains("queries: 5 with 4 workers"), output[1]);
+    }
+
+    @Test
+    void savedSnapshotsGiveTheSameResults() throws Exception {
+        Path snapshot = directory.resolve("movies.snapshot");
+        List<String> expected = results(run("--save-snapshot", snapshot.toString(), DATASET,
+                queries.toString())[0]);
+        assertTrue(Files.size(snapshot) > 0);
+        assertEquals(expected, results(run(snapshot.toString(), queries.toString())[0]));
+    }
+
+    @Test
+    void optionsAreParsed() {
+        assertEquals(new MovieAnalyzer.CommandLine(1, null, DATASET, "queries.txt"),
+                MovieAnalyzer.CommandLine.parse(new String[]{DATASET, "queries.txt"}));
+        assertEquals(new MovieAnalyzer.CommandLine(4, "movies.snapshot", DATASET, "queries.txt"),
+                MovieAnalyzer.CommandLine.parse(new String[]{"--save-snapshot", "movies.snapshot",
+                        "--workers", "4", DATASET, "queries.txt"}));
+    }
+
+    @Test
+    void invalidCommandLinesAreRejected() {
+        // main prints these messages and the usage, and exits with status 2
+        for (List<String> args : List.of(
+                List.of("--threads", "4", DATASET, "queries.txt"),
+                List.of(DATASET, "queries.txt", "--workers"),
+                List.of("--workers"),
+                List.of("--save-snapshot"),
+                List.of("--workers", "abc", DATASET, "queries.txt"),
+                List.of("--workers", "0", DATASET, "queries.txt"),
+                List.of("--workers", "-2", DATASET, "queries.txt"),
+                List.of(DATASET),
+                List.of(DATASET, "queries.txt", "more.txt"))) {
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                    () -> MovieAnalyzer.CommandLine.parse(args.toArray(new String[0])),
+                    args.toString());
+            assertNotNull(e.getMessage(), args.toString());
+        }
+    }
+}
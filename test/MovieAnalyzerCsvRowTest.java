@@ -0,0 +1,115 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the parsing of the fields of a csv row, which should agree with
+ * {@link Integer#parseInt}, {@link Float#parseFloat} and {@link Long#parseLong}.
+ */
+public class MovieAnalyzerCsvRowTest {
+    private static MovieAnalyzer.CsvRow row(String... fields) {
+        return new MovieAnalyzer.CsvRow().split(String.join(",", fields));
+    }
+
+    @Test
+    void parseIntAgreesWithIntegerParseInt() {
+        for (String text : List.of("0", "7", "-7", "+7", "-0", "0042", "2147483647", "-2147483648",
+                "2147483648", "-2147483649", "99999999999", "-", "+", "--1", "1-", "12a", " 1")) {
+            Integer expected;
+            try {
+                expected = Integer.parseInt(text);
+            } catch (NumberFormatException e) {
+                expected = null;
+            }
+            Integer actual;
+            try {
+                actual = row("x", text).parseInt(1, 0);
+            } catch (NumberFormatException e) {
+                actual = null;
+            }
+            assertEquals(expected, actual, "parseInt(\"" + text + "\")");
+        }
+    }
+
+    @Test
+    void parseIntIgnoresSuffix() {
+        assertEquals(142, row("142 min").parseInt(0, 4));
+        assertThrows(NumberFormatException.class, () -> row(" min").parseInt(0, 4));
+        assertThrows(NumberFormatException.class, () -> row("- min").parseInt(0, 4));
+    }
+
+    @Test
+    void parseDecimalAgreesWithFloatParseFloat() {
+        for (String text : List.of("9.3", "8", "8.0", "0.1", "7.25", "10", ".5", "5.", "1e2",
+                "3.1415926", "123456789.123")) {
+            assertEquals(Float.parseFloat(text), row(text).parseDecimal(0), "parseDecimal(" + text
+                    + ")");
+        }
+        for (String text : List.of("", ".", "-", "abc")) {
+            assertThrows(NumberFormatException.class, () -> row("x", text).parseDecimal(1),
+                    "parseDecimal(" + text + ")");
+        }
+    }
+
+    @Test
+    void parseDigitsSkipsSeparatorsAndQuotes() {
+        assertEquals(28341469L, row("x", "\"28,341,469\"").parseDigits(1));
+        assertEquals(4_000_000_000L, row("x", "\"4,000,000,000\"").parseDigits(1));
+        assertEquals(5L, row("5").parseDigits(0));
+        assertThrows(NumberFormatException.class, () -> row("x", "\"\"").parseDigits(1));
+        assertThrows(NumberFormatException.class, () -> row("x", "\"1,2x\"").parseDigits(1));
+    }
+
+    @Test
+    void quotedEmptyFieldsAreEmpty() {
+        MovieAnalyzer.CsvRow row = row("a", "", "\"\"", "\"b\"");
+        assertEquals(4, row.size());
+        assertFalse(row.isEmpty(0));
+        assertTrue(row.isEmpty(1));
+        assertTrue(row.isEmpty(2));
+        assertFalse(row.isEmpty(3));
+        assertTrue(row.isEmpty(4));
+        assertEquals("b", row.unquoted(3));
+    }
+
+    private static List<String> readMovies(String row) throws IOException {
+        Path file = MovieAnalyzerTestFiles.tempCsv("movies", List.of(row));
+        try (Stream<MovieAnalyzer.Movie> movies = MovieAnalyzer.readMovies(file.toString())) {
+            return movies.map(String::valueOf).toList();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void rowsWithMalformedNumbersAreRejected() {
+        String row = "p,Title,%s,A,142 min,Drama,9.3,Overview,80,Director,S1,S2,S3,S4,%s,%s";
+        for (String[] values : new String[][]{{"-", "100", "5"}, {"1994", "-", "5"},
+                {"1994", "+", "5"}, {"1994", "100", "\"1,x\""}}) {
+            assertThrows(NumberFormatException.class, () -> {
+                try {
+                    readMovies(String.format(row, (Object[]) values));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, String.join(", ", values));
+        }
+    }
+
+    @Test
+    void missingValuesAreNull() throws IOException {
+        String row = "p,Title,%s,A,142 min,Drama,9.3,Overview,80,Director,S1,S2,S3,S4,100,%s";
+        assertTrue(readMovies(String.format(row, "1994", "\"\"")).get(0).contains("Gross=null"));
+        assertTrue(readMovies(String.format(row, "1994", "")).get(0).contains("Gross=null"));
+        assertTrue(readMovies(String.format(row, "\"\"", "5")).get(0).contains("Year=null"));
+        assertTrue(readMovies(String.format(row, "1994", "\"5,000,000,000\"")).get(0)
+                .contains("Gross=5000000000"));
+    }
+}
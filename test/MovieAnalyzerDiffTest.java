@@ -0,0 +1,178 @@
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the comparison of two versions of a dataset, whose differences should match the
+ * analyses of the two versions.
+ */
+public class MovieAnalyzerDiffTest {
+    // the number of votes, before the gross (quoted or empty) at the end of a row
+    private static final Pattern VOTES = Pattern.compile(",(\\d+),(\"[^\"]*\"|)$");
+
+    private static final List<Path> files = new ArrayList<>();
+    private static MovieAnalyzer older;
+    private static MovieAnalyzer newer;
+    private static String revoted;
+
+    private static Path write(List<String> rows) throws IOException {
+        Path file = MovieAnalyzerTestFiles.tempCsv("diff", rows);
+        files.add(file);
+        return file;
+    }
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        List<String> rows = MovieAnalyzerTestFiles.datasetRows();
+        // the older version has the first 400 movies, the newer one the last 400 movies, one of
+        // them with 1000 more votes
+        List<String> olderRows = rows.subList(0, 400);
+        List<String> newerRows = new ArrayList<>(rows.subList(100, rows.size()));
+        Matcher matcher = VOTES.matcher(newerRows.get(0));
+        assertTrue(matcher.find());
+        newerRows.set(0, newerRows.get(0).substring(0, matcher.start()) + ","
+                + (Integer.parseInt(matcher.group(1)) + 1000) + "," + matcher.group(2));
+        older = new MovieAnalyzer(write(olderRows).toString());
+        newer = new MovieAnalyzer(write(newerRows).toString());
+        older.awaitReady();
+        newer.awaitReady();
+        revoted = newer.movieList.get(0).getSeriesTitle();
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        for (Path file : files) {
+            Files.delete(file);
+        }
+    }
+
+    private static <K> Map<K, Integer> deltas(Map<K, Integer> before, Map<K, Integer> after) {
+        Map<K, Integer> deltas = new HashMap<>(after);
+        before.forEach((key, count) -> deltas.merge(key, -count, Integer::sum));
+        deltas.values().removeIf(delta -> delta == 0);
+        return deltas;
+    }
+
+    /**
+     * Asserts that the rank changes turn the older top stars into the newer ones.
+     */
+    private static void assertRankChanges(List<MovieAnalyzer.RankChange> changes,
+                                          List<String> before, List<String> after) {
+        Map<String, Integer> ranks = new HashMap<>();
+        for (int i = 0; i < before.size(); i++) {
+            ranks.put(before.get(i), i + 1);
+        }
+        for (MovieAnalyzer.RankChange change : changes) {
+            assertEquals(ranks.get(change.name()), change.before(), change.name());
+            assertNotEquals(change.before(), change.after(), change.name());
+            if (change.after() == null) {
+                ranks.remove(change.name());
+            } else {
+                ranks.put(change.name(), change.after());
+            }
+        }
+        Map<Integer, String> byRank = new TreeMap<>();
+        ranks.forEach((star, rank) -> assertNull(byRank.put(rank, star), "rank " + rank));
+        assertEquals(after, List.copyOf(byRank.values()));
+    }
+
+    @Test
+    void differencesMatchBothVersions() {
+        MovieAnalyzer.DatasetDiff diff = older.diff(newer, 50);
+        assertEquals(older.movieList.subList(0, 100), diff.removed());
+        assertEquals(newer.movieList.subList(300, 400), diff.added());
+        assertEquals(1, diff.changed().size());
+        MovieAnalyzer.MovieChange change = diff.changed().get(0);
+        assertEquals(revoted, change.after().getSeriesTitle());
+        assertEquals(Integer.valueOf(1000), change.votesDelta());
+        assertEquals(Float.valueOf(0), change.ratingDelta());
+
+        assertEquals(deltas(older.getMovieCountByGenre(), newer.getMovieCountByGenre()),
+                diff.genreDeltas());
+        assertEquals(deltas(older.getCoStarCount(), newer.getCoStarCount()), diff.coStarDeltas());
+        assertRankChanges(diff.topStarsByRating(), older.getTopStars(50, "rating"),
+                newer.getTopStars(50, "rating"));
+        assertRankChanges(diff.topStarsByGross(), older.getTopStars(50, "gross"),
+                newer.getTopStars(50, "gross"));
+    }
+
+    @Test
+    void reversedDiffSwapsTheChanges() {
+        MovieAnalyzer.DatasetDiff diff = older.diff(newer, 50);
+        MovieAnalyzer.DatasetDiff reversed = newer.diff(older, 50);
+        assertEquals(diff.added(), reversed.removed());
+        assertEquals(diff.removed(), reversed.added());
+        assertEquals(Integer.valueOf(-1000), reversed.changed().get(0).votesDelta());
+        Map<String, Integer> genres = new HashMap<>();
+        diff.genreDeltas().forEach((genre, delta) -> genres.put(genre, -delta));
+        assertEquals(genres, reversed.genreDeltas());
+    }
+
+    @Test
+    void identicalDatasetsHaveNoDifferences() {
+        MovieAnalyzer copy = new MovieAnalyzer(files.get(0).toString());
+        MovieAnalyzer.DatasetDiff diff = older.diff(copy, 50);
+        assertTrue(diff.added().isEmpty());
+        assertTrue(diff.removed().isEmpty());
+        assertTrue(diff.changed().isEmpty());
+        assertTrue(diff.genreDeltas().isEmpty());
+        assertTrue(diff.coStarDeltas().isEmpty());
+        assertTrue(diff.topStarsByRating().isEmpty());
+        assertTrue(diff.topStarsByGross().isEmpty());
+    }
+
+    @Test
+    void oppositeDiffsDoNotDeadlock() throws Exception {
+        MovieAnalyzer first = new MovieAnalyzer(files.get(0).toString());
+        MovieAnalyzer second = new MovieAnalyzer(files.get(1).toString());
+        // the writer queues on the locks between the read locks of the two diffs
+        CompletableFuture<?> forward = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 20; i++) {
+                first.diff(second, 10);
+            }
+        });
+        CompletableFuture<?> backward = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 20; i++) {
+                second.diff(first, 10);
+            }
+        });
+        CompletableFuture<?> writer = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 20; i++) {
+                first.addMovies(Stream.of(older.movieList.get(i)));
+                second.addMovies(Stream.of(newer.movieList.get(i)));
+            }
+        });
+        CompletableFuture.allOf(forward, backward, writer).get(60, TimeUnit.SECONDS);
+        assertEquals(older.movieList.size() + 20, first.movieList.size());
+    }
+
+    @Test
+    void repeatedKeysAreMatchedInOrder() throws IOException {
+        List<String> rows = MovieAnalyzerTestFiles.datasetRows();
+        // the same movie three times in the older version and twice in the newer one
+        MovieAnalyzer before = new MovieAnalyzer(write(List.of(rows.get(0), rows.get(0),
+                rows.get(1), rows.get(0))).toString());
+        MovieAnalyzer after = new MovieAnalyzer(write(List.of(rows.get(1), rows.get(0),
+                rows.get(0))).toString());
+        MovieAnalyzer.DatasetDiff diff = before.diff(after, 10);
+        assertEquals(List.of(before.movieList.get(3)), diff.removed());
+        assertTrue(diff.added().isEmpty());
+        assertTrue(diff.changed().isEmpty());
+    }
+}
@@ -0,0 +1,119 @@
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the estimates answered from samples of the movies, whose 95% confidence intervals should
+ * contain the exact values in most cases, and which are exact while the samples hold every movie.
+ */
+public class MovieAnalyzerEstimateTest {
+    private static final String DATASET = MovieAnalyzerTestFiles.DATASET;
+    // more movies than the uniform sample and the samples of the frequent genres hold
+    private static final int COPIES = 20;
+    private static final double MIN_COVERAGE = 0.8;
+
+    private static Path repeated;
+    private static MovieAnalyzer imdbTop;
+    private static MovieAnalyzer large;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        repeated = MovieAnalyzerTestFiles.tempCsv("repeated",
+                MovieAnalyzerTestFiles.repeatedRows(COPIES));
+        imdbTop = new MovieAnalyzer(DATASET);
+        large = new MovieAnalyzer(repeated.toString());
+        imdbTop.awaitReady();
+        large.awaitReady();
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        Files.delete(repeated);
+    }
+
+    /**
+     * Asserts that every estimate is within its interval, and returns whether the interval
+     * contains the exact value.
+     */
+    private static boolean covers(MovieAnalyzer.Estimate estimate, double exact, String what) {
+        assertTrue(estimate.low() <= estimate.value() && estimate.value() <= estimate.high(),
+                what + ": " + estimate);
+        return estimate.low() <= exact && exact <= estimate.high();
+    }
+
+    private static <K> void assertCoverage(Map<K, MovieAnalyzer.Estimate> estimates,
+                                           Map<K, Integer> exact, String what) {
+        int covered = 0;
+        for (Map.Entry<K, MovieAnalyzer.Estimate> entry : estimates.entrySet()) {
+            assertTrue(exact.containsKey(entry.getKey()), what + " " + entry.getKey());
+            if (covers(entry.getValue(), exact.get(entry.getKey()), what + " " + entry.getKey())) {
+                covered++;
+            }
+        }
+        assertTrue(covered >= MIN_COVERAGE * estimates.size(),
+                String.format("%s: %d of %d intervals", what, covered, estimates.size()));
+    }
+
+    @Test
+    void completeSamplesAreExact() {
+        Map<Integer, MovieAnalyzer.Estimate> years = imdbTop.getMovieCountByYear(true);
+        assertEquals(imdbTop.getMovieCountByYear(false), years);
+        assertTrue(years.values().stream().allMatch(MovieAnalyzer.Estimate::isExact));
+        assertEquals(imdbTop.getMovieCountByGenre(false), imdbTop.getMovieCountByGenre(true));
+        assertEquals(imdbTop.getTopStars(20, "rating", false).keySet(),
+                imdbTop.getTopStars(20, "rating", true).keySet());
+        MovieAnalyzer.Estimate drama = imdbTop.countSearchResults("Drama", 8.0f, 150, true);
+        assertTrue(drama.isExact(), drama.toString());
+        assertEquals(imdbTop.searchMovies("Drama", 8.0f, 150).size(), drama.value());
+    }
+
+    @Test
+    void countIntervalsContainTheExactCounts() {
+        assertCoverage(large.getMovieCountByYear(true), large.getMovieCountByYear(), "year");
+        assertCoverage(large.getMovieCountByGenre(true), large.getMovieCountByGenre(), "genre");
+        int covered = 0;
+        List<String> genres = List.copyOf(large.getMovieCountByGenre().keySet());
+        for (String genre : genres) {
+            int exact = large.searchMovies(genre, 8.0f, 150).size();
+            if (covers(large.countSearchResults(genre, 8.0f, 150, true), exact, genre)) {
+                covered++;
+            }
+        }
+        assertTrue(covered >= MIN_COVERAGE * genres.size(),
+                String.format("search: %d of %d intervals", covered, genres.size()));
+    }
+
+    @Test
+    void starIntervalsContainTheExactAverages() {
+        Map<String, MovieAnalyzer.Estimate> estimates = large.getTopStars(50, "rating", true);
+        assertEquals(50, estimates.size());
+        Map<String, MovieAnalyzer.Estimate> exact = large.getTopStars(Integer.MAX_VALUE,
+                "rating", false);
+        int covered = 0;
+        for (Map.Entry<String, MovieAnalyzer.Estimate> entry : estimates.entrySet()) {
+            if (covers(entry.getValue(), exact.get(entry.getKey()).value(), entry.getKey())) {
+                covered++;
+            }
+        }
+        assertTrue(covered >= MIN_COVERAGE * estimates.size(),
+                String.format("stars: %d of %d intervals", covered, estimates.size()));
+    }
+
+    @Test
+    void invalidArgumentsAreRejected() {
+        for (boolean estimate : new boolean[]{false, true}) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> imdbTop.getTopStars(10, "count", estimate));
+            assertThrows(IllegalArgumentException.class,
+                    () -> imdbTop.getTopStars(-1, "rating", estimate));
+        }
+    }
+}
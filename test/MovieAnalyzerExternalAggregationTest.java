@@ -0,0 +1,63 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the aggregations in bounded memory, which spill sorted runs and merge them in passes of
+ * a bounded number of runs.
+ */
+public class MovieAnalyzerExternalAggregationTest {
+    private static final String DATASET = "resources/imdb_top_500.csv";
+
+    private static MovieAnalyzer imdbTop;
+
+    @BeforeAll
+    static void setUp() {
+        imdbTop = new MovieAnalyzer(DATASET);
+        imdbTop.awaitReady();
+    }
+
+    @Test
+    void manyRunsAreMergedInPasses() throws IOException {
+        // every pair spills a run: thousands of runs, merged into longer runs before the last pass
+        Map<List<String>, Integer> coStars = new HashMap<>();
+        List<List<String>> pairs = new ArrayList<>();
+        MovieAnalyzer.countCoStarsExternally(DATASET, 1, (pair, count) -> {
+            pairs.add(pair);
+            coStars.put(pair, count);
+        });
+        assertEquals(imdbTop.getCoStarCount(), coStars);
+        assertEquals(pairs.size(), coStars.size(), "a pair was given twice");
+        for (String by : List.of("rating", "gross")) {
+            assertEquals(imdbTop.getTopStars(50, by),
+                    MovieAnalyzer.getTopStarsExternally(DATASET, 50, by, 1), by);
+        }
+    }
+
+    @Test
+    void resultsDoNotDependOnTheBudget() throws IOException {
+        for (long memoryBudget : new long[]{0, 1 << 10, 1 << 14, 1 << 20, Long.MAX_VALUE}) {
+            Map<List<String>, Integer> coStars = new HashMap<>();
+            MovieAnalyzer.countCoStarsExternally(DATASET, memoryBudget, coStars::put);
+            assertEquals(imdbTop.getCoStarCount(), coStars, "budget " + memoryBudget);
+            assertEquals(imdbTop.getTopStars(20, "rating"),
+                    MovieAnalyzer.getTopStarsExternally(DATASET, 20, "rating", memoryBudget),
+                    "budget " + memoryBudget);
+        }
+    }
+
+    @Test
+    void invalidArgumentsAreRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> MovieAnalyzer.getTopStarsExternally(DATASET, 10, "count", 1 << 20));
+        assertThrows(IllegalArgumentException.class,
+                () -> MovieAnalyzer.getTopStarsExternally(DATASET, -1, "rating", 1 << 20));
+    }
+}
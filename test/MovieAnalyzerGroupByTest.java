@@ -0,0 +1,69 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the group-by aggregation engine.
+ */
+public class MovieAnalyzerGroupByTest {
+    private static MovieAnalyzer imdbTop;
+
+    @BeforeAll
+    static void setUp() {
+        imdbTop = new MovieAnalyzer("resources/imdb_top_500.csv");
+    }
+
+    @Test
+    void countsMatchCountQueries() {
+        MovieAnalyzer.GroupBy byYear = imdbTop.groupBy(MovieAnalyzer.KeyColumn.YEAR,
+                MovieAnalyzer.AggregateSpec.count());
+        Map<Integer, Integer> countByYear = imdbTop.getMovieCountByYear();
+        assertEquals(countByYear.size(), byYear.size());
+        countByYear.forEach((year, count) ->
+                assertEquals(count, (int) byYear.get(String.valueOf(year), 0), "year " + year));
+        MovieAnalyzer.GroupBy byGenre = imdbTop.groupBy(MovieAnalyzer.KeyColumn.GENRE,
+                MovieAnalyzer.AggregateSpec.count());
+        imdbTop.getMovieCountByGenre().forEach((genre, count) ->
+                assertEquals(count, (int) byGenre.get(genre, 0), "genre " + genre));
+    }
+
+    @Test
+    void aggregatesAreConsistent() {
+        MovieAnalyzer.GroupBy groups = imdbTop.groupBy(MovieAnalyzer.KeyColumn.DIRECTOR,
+                MovieAnalyzer.AggregateSpec.of(MovieAnalyzer.Aggregate.MIN,
+                        MovieAnalyzer.Measure.RATING),
+                MovieAnalyzer.AggregateSpec.of(MovieAnalyzer.Aggregate.AVG,
+                        MovieAnalyzer.Measure.RATING),
+                MovieAnalyzer.AggregateSpec.of(MovieAnalyzer.Aggregate.MAX,
+                        MovieAnalyzer.Measure.RATING),
+                MovieAnalyzer.AggregateSpec.of(MovieAnalyzer.Aggregate.SUM,
+                        MovieAnalyzer.Measure.RATING),
+                MovieAnalyzer.AggregateSpec.count());
+        for (String director : groups.keys()) {
+            double min = groups.get(director, 0);
+            double avg = groups.get(director, 1);
+            double max = groups.get(director, 2);
+            assertTrue(min <= avg && avg <= max, director);
+            assertEquals(groups.get(director, 3) / groups.get(director, 4), avg, 1e-9, director);
+        }
+    }
+
+    @Test
+    void unknownKeyHasNoValue() {
+        MovieAnalyzer.GroupBy groups = imdbTop.groupBy(MovieAnalyzer.KeyColumn.YEAR,
+                MovieAnalyzer.AggregateSpec.count());
+        assertTrue(Double.isNaN(groups.get("1066", 0)));
+    }
+
+    @Test
+    void topStarsMatchGetTopStars() {
+        for (String by : new String[]{"rating", "gross"}) {
+            assertEquals(imdbTop.getTopStars(20, by),
+                    List.copyOf(imdbTop.getTopStars(20, by, false).keySet()), by);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the reading of gzip compressed datasets, which should give the movies of the plain
+ * datasets.
+ */
+public class MovieAnalyzerGzipTest {
+    private static final String DATASET = MovieAnalyzerTestFiles.DATASET;
+    // enough rows to fill the ring of inflated buffers many times
+    private static final int COPIES = 20;
+
+    private static Path directory;
+    private static Path compressed;
+    private static Path repeated;
+    private static MovieAnalyzer imdbTop;
+
+    private static Path gzip(Path file, List<String> rows) throws IOException {
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+            out.write((MovieAnalyzerTestFiles.HEADER + "\n" + String.join("\n", rows))
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        directory = Files.createTempDirectory("gzip");
+        compressed = gzip(directory.resolve("movies.csv.gz"), MovieAnalyzerTestFiles.datasetRows());
+        repeated = gzip(directory.resolve("repeated.gz"),
+                MovieAnalyzerTestFiles.repeatedRows(COPIES));
+        imdbTop = new MovieAnalyzer(DATASET);
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        MovieAnalyzerTestFiles.deleteDirectory(directory);
+    }
+
+    private static List<MovieAnalyzer.Movie> read(Path file) throws IOException {
+        try (Stream<MovieAnalyzer.Movie> movies = MovieAnalyzer.readMovies(file.toString())) {
+            return movies.toList();
+        }
+    }
+
+    private static void assertSameMovies(List<MovieAnalyzer.Movie> expected,
+                                         List<MovieAnalyzer.Movie> actual, String what) {
+        assertEquals(expected.size(), actual.size(), what);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).toString(), actual.get(i).toString(), what);
+            assertEquals(expected.get(i).getOverview(), actual.get(i).getOverview(), what);
+        }
+    }
+
+    @Test
+    void compressedDatasetsGiveThePlainMovies() throws IOException {
+        assertSameMovies(read(Path.of(DATASET)), read(compressed), "readMovies");
+        MovieAnalyzer analyzer = new MovieAnalyzer(compressed.toString());
+        assertSameMovies(imdbTop.movieList, analyzer.movieList, "constructor");
+        assertEquals(imdbTop.getTopStars(20, "gross"), analyzer.getTopStars(20, "gross"));
+        assertSameMovies(imdbTop.movieList,
+                MovieAnalyzer.loadPipelined(compressed.toString(), 2).movieList, "loadPipelined");
+    }
+
+    @Test
+    void largeCompressedDatasetsSpanManyBuffers() throws IOException {
+        List<MovieAnalyzer.Movie> movies = read(repeated);
+        assertEquals(COPIES * imdbTop.movieList.size(), movies.size());
+        for (int i = 0; i < COPIES; i++) {
+            int size = imdbTop.movieList.size();
+            assertSameMovies(imdbTop.movieList, movies.subList(i * size, (i + 1) * size),
+                    "copy " + i);
+        }
+    }
+
+    @Test
+    void compressedShardsAreSelected() throws IOException {
+        MovieAnalyzer sharded = MovieAnalyzer.fromShards(directory.resolve("*.csv.gz").toString());
+        assertSameMovies(imdbTop.movieList, sharded.movieList, "fromShards");
+    }
+
+    @Test
+    void truncatedFilesFail() throws IOException {
+        byte[] bytes = Files.readAllBytes(repeated);
+        // not a .csv.gz, so the shards glob does not select it
+        Path truncated = directory.resolve("truncated.gz");
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length / 2));
+        assertThrows(UncheckedIOException.class, () -> read(truncated));
+    }
+
+    @Test
+    void closingStopsTheInflater() throws Exception {
+        try (Stream<MovieAnalyzer.Movie> movies = MovieAnalyzer.readMovies(repeated.toString())) {
+            assertSameMovies(imdbTop.movieList.subList(0, 10), movies.limit(10).toList(),
+                    "the first movies");
+        }
+        String name = "gzip-inflater-" + repeated.getFileName();
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(thread -> thread.getName().equals(name))) {
+            assertTrue(System.nanoTime() < deadline, "the inflater is still running");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the memory usage estimates, which should match the heap measured by the JVM, and of the
+ * indexes refused and admitted again by the memory budget.
+ */
+public class MovieAnalyzerMemoryBudgetTest {
+    private static final String DATASET = MovieAnalyzerTestFiles.DATASET;
+    // the dataset is repeated, so the estimates are measured over megabytes rather than kilobytes
+    private static final int COPIES = 20;
+    private static final double MAX_ESTIMATE_ERROR = 0.3;
+
+    private static Path repeated;
+    private static MovieAnalyzer imdbTop;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        repeated = MovieAnalyzerTestFiles.tempCsv("repeated",
+                MovieAnalyzerTestFiles.repeatedRows(COPIES));
+        imdbTop = new MovieAnalyzer(DATASET);
+        imdbTop.awaitReady();
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        Files.delete(repeated);
+    }
+
+    /**
+     * Returns the heap used after garbage collection, the least of several measurements.
+     */
+    private static long usedHeap() throws InterruptedException {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+            Runtime runtime = Runtime.getRuntime();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static void assertClose(long measured, long estimated, String what) {
+        assertTrue(Math.abs(estimated - measured) <= MAX_ESTIMATE_ERROR * measured,
+                String.format("%s: estimated %,d bytes, measured %,d bytes", what, estimated,
+                        measured));
+    }
+
+    @Test
+    void estimatesMatchMeasuredHeap() throws InterruptedException {
+        // a first load, so the classes and caches of the JVM are not measured
+        new MovieAnalyzer(repeated.toString()).awaitReady();
+        long before = usedHeap();
+        MovieAnalyzer analyzer = new MovieAnalyzer(repeated.toString());
+        analyzer.awaitReady();
+        long loaded = usedHeap();
+        MovieAnalyzer.MemoryUsage usage = analyzer.getMemoryUsage();
+        assertClose(loaded - before, usage.total(), "the analyzer");
+
+        long indexes = 0;
+        for (MovieAnalyzer.IndexKind kind : MovieAnalyzer.IndexKind.values()) {
+            indexes += usage.components().get(kind.name());
+        }
+        analyzer.setMemoryBudget(0);
+        assertClose(loaded - usedHeap(), indexes + usage.components().get("dictionaries")
+                - analyzer.getMemoryUsage().components().get("dictionaries"), "the indexes");
+    }
+
+    @Test
+    void refusedIndexesFallBackToScans() {
+        MovieAnalyzer analyzer = new MovieAnalyzer(DATASET);
+        analyzer.awaitReady();
+        analyzer.setMemoryBudget(0);
+        for (MovieAnalyzer.IndexKind kind : MovieAnalyzer.IndexKind.values()) {
+            assertFalse(analyzer.isIndexReady(kind), kind + " index was not refused");
+        }
+        // without the index, all the movies are ranked instead of the candidates of the buckets
+        List<String> candidates = imdbTop.getSimilarMovies("Inception", 10);
+        List<String> exact = analyzer.getSimilarMovies("Inception", 10);
+        assertEquals(10, exact.size());
+        assertEquals(exact.stream().filter(candidates::contains).toList(),
+                candidates.stream().filter(exact::contains).toList());
+        assertEquals(imdbTop.measureSimilarMoviesRecall(10, 50),
+                analyzer.measureSimilarMoviesRecall(10, 50));
+        for (String by : new String[]{"rating", "gross", "count"}) {
+            assertEquals(imdbTop.getTopDirectors(20, by), analyzer.getTopDirectors(20, by), by);
+        }
+        assertEquals(imdbTop.getDirectorStarCount(), analyzer.getDirectorStarCount());
+        assertEquals(imdbTop.getDirectorFilmography("Christopher Nolan"),
+                analyzer.getDirectorFilmography("Christopher Nolan"));
+    }
+
+    @Test
+    void largerBudgetRebuildsRefusedIndexes() {
+        MovieAnalyzer analyzer = new MovieAnalyzer(DATASET);
+        analyzer.awaitReady();
+        long total = analyzer.getMemoryUsage().total();
+        analyzer.setMemoryBudget(0);
+        // a byte short of everything: the largest index with a cheap fallback is refused again
+        analyzer.setMemoryBudget(total - 1);
+        assertTrue(analyzer.isIndexReady(MovieAnalyzer.IndexKind.SIMILARITY));
+        assertTrue(analyzer.isIndexReady(MovieAnalyzer.IndexKind.DIRECTOR));
+        assertEquals(1, Stream.of(MovieAnalyzer.IndexKind.values())
+                .filter(kind -> !analyzer.isIndexReady(kind)).count());
+        analyzer.setMemoryBudget(total);
+        for (MovieAnalyzer.IndexKind kind : MovieAnalyzer.IndexKind.values()) {
+            assertTrue(analyzer.isIndexReady(kind), kind + " index was not rebuilt");
+        }
+        assertEquals(total, analyzer.getMemoryUsage().total());
+        assertEquals(imdbTop.getSimilarMovies("Inception", 10),
+                analyzer.getSimilarMovies("Inception", 10));
+        assertEquals(imdbTop.getTopDirectors(20, "rating"), analyzer.getTopDirectors(20, "rating"));
+        assertEquals(imdbTop.getCoStarCount(), analyzer.getCoStarCount());
+    }
+}
@@ -0,0 +1,787 @@
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Performance regression tests of {@code MovieAnalyzer} on fixed synthetic datasets.
+ *
+ * <p>Every public query method is run on a generated dataset and checked against three budgets:
+ * the bytes allocated per call by the calling thread, the time to parse a million rows, and the
+ * ratio of its latency to the one stored in {@code resources/perf_baseline.properties}. The
+ * stored latencies are scaled by a calibration workload timed in the same run, so the ratio does
+ * not depend on the speed of the machine. Run with {@code -Dperf.updateBaseline=true} to record
+ * a new baseline instead of checking it.
+ *
+ * <p>The differential tests check that every optimized engine (the parallel loaders, the columnar
+ * filters, the windowed rankings, the spilling aggregation, the batch runner and the indexes)
+ * gives exactly the same results as the reference: the constructor and the scans the queries
+ * fall back to without their indexes.
+ */
+public class MovieAnalyzerPerformanceTest {
+    private static final Path BASELINE = Paths.get("resources", "perf_baseline.properties");
+    private static final boolean UPDATE_BASELINE = Boolean.getBoolean("perf.updateBaseline");
+    private static final int ROWS = 100_000;
+    private static final int DIFFERENTIAL_ROWS = 20_000;
+    private static final int SHARDS = 4;
+    private static final int FIELD_ROWS = 20_000;
+    // every query is warmed up for this long (and at most MAX_WARMUP_RUNS runs) until compiled
+    private static final long WARMUP_NANOS = 500_000_000;
+    private static final int MAX_WARMUP_RUNS = 50;
+    private static final int MEASURED_RUNS = 7;
+    // a pass over the fields takes about a millisecond, short enough for a slow spell of the
+    // machine to slow it down, so the best of many passes is kept
+    private static final int MEASURED_FIELD_RUNS = 50;
+    private static final double MAX_LATENCY_RATIO = 3.0;
+    private static final double MAX_ALLOCATION_RATIO = 1.5;
+    // below these floors the differences are noise rather than regressions
+    private static final long LATENCY_FLOOR_NANOS = 2_000_000;
+    private static final long ALLOCATION_FLOOR_BYTES = 64 * 1024;
+
+    private static final List<String> GENRES = List.of("Drama", "Crime", "Action", "Adventure",
+            "Biography", "History", "Sci-Fi", "Romance", "Western", "Fantasy", "Comedy",
+            "Thriller", "Animation", "Family", "War", "Mystery", "Music", "Horror", "Musical",
+            "Film-Noir", "Sport");
+    private static final List<String> CERTIFICATES = List.of("A", "U", "UA", "R", "PG-13", "PG",
+            "G", "Passed", "Approved", "TV-PG", "U/A", "Unrated", "");
+
+    /** The queries measured and compared across engines, one per public query method at least. */
+    private static final Map<String, Function<MovieAnalyzer, Object>> QUERIES = queries();
+    /** The public methods that are not queries of the movies. */
+    private static final Set<String> NOT_QUERIES = Set.of("isIndexReady", "getCacheStats",
+            "getIngestionStats", "getUpdates", "measureSimilarMoviesRecall");
+    /** The queries whose results describe the engine rather than the movies. */
+    private static final Set<String> ENGINE_DEPENDENT = Set.of("getMemoryUsage");
+
+    private static Path directory;
+    private static Path dataset;
+    private static Path differentialDataset;
+    private static MovieAnalyzer analyzer;
+    private static MovieAnalyzer reference;
+    private static com.sun.management.ThreadMXBean threads;
+    private static Properties baseline;
+    private static long calibrationNanos;
+    private static Map<String, long[]> measurements;
+    private static final Map<String, Long> recorded = new TreeMap<>();
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        directory = Files.createTempDirectory("movie-analyzer-perf");
+        dataset = directory.resolve("movies.csv");
+        differentialDataset = directory.resolve("differential.csv");
+        List<String> rows = generateRows(ROWS, 20221031L);
+        MovieAnalyzerTestFiles.writeCsv(dataset, rows);
+        List<String> differentialRows = generateRows(DIFFERENTIAL_ROWS, 19940923L);
+        MovieAnalyzerTestFiles.writeCsv(differentialDataset, differentialRows);
+        int shardSize = (DIFFERENTIAL_ROWS + SHARDS - 1) / SHARDS;
+        Path shards = Files.createDirectory(directory.resolve("shards"));
+        for (int i = 0; i < SHARDS; i++) {
+            MovieAnalyzerTestFiles.writeCsv(shards.resolve("shard-" + i + ".csv"),
+                    differentialRows.subList(i * shardSize,
+                            Math.min((i + 1) * shardSize, DIFFERENTIAL_ROWS)));
+        }
+        MovieAnalyzerTestFiles.writeCsv(directory.resolve("first.csv"),
+                differentialRows.subList(0, DIFFERENTIAL_ROWS / 2));
+        MovieAnalyzerTestFiles.writeCsv(directory.resolve("second.csv"),
+                differentialRows.subList(DIFFERENTIAL_ROWS / 2, DIFFERENTIAL_ROWS));
+
+        analyzer = loadAnalyzer();
+        reference = loadReference();
+
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        baseline = new Properties();
+        if (Files.exists(BASELINE)) {
+            try (var reader = Files.newBufferedReader(BASELINE, StandardCharsets.UTF_8)) {
+                baseline.load(reader);
+            }
+        }
+        calibrationNanos = calibrate();
+        recorded.put("rows", (long) ROWS);
+        recorded.put("calibration", calibrationNanos);
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        if (UPDATE_BASELINE) {
+            List<String> lines = new ArrayList<>();
+            lines.add("# Baseline of MovieAnalyzerPerformanceTest, written by running it with "
+                    + "-Dperf.updateBaseline=true.");
+            lines.add("# calibration, field.*, parse.* and latency.* are nanoseconds (field.* "
+                    + "per million fields, parse.* per million rows), allocation.* are bytes per "
+                    + "call.");
+            // the keys that were not measured, e.g. by a test that was not run, are kept
+            Map<String, String> values = new TreeMap<>();
+            baseline.forEach((key, value) -> values.put(key.toString(), value.toString()));
+            recorded.forEach((key, value) -> values.put(key, value.toString()));
+            values.forEach((key, value) -> lines.add(key + "=" + value));
+            Files.write(BASELINE, lines, StandardCharsets.UTF_8);
+        }
+        MovieAnalyzerTestFiles.deleteDirectory(directory);
+    }
+
+    /**
+     * Loads the analyzer of the measured queries, with its indexes built and no result cache.
+     */
+    private static MovieAnalyzer loadAnalyzer() {
+        MovieAnalyzer loaded = new MovieAnalyzer(dataset.toString());
+        loaded.awaitReady();
+        // every call should compute its result, not hit the result cache
+        loaded.setCacheLimits(0, 0);
+        return loaded;
+    }
+
+    /**
+     * Loads the analyzer the other engines are compared with, with its indexes built.
+     */
+    private static MovieAnalyzer loadReference() {
+        MovieAnalyzer loaded = new MovieAnalyzer(differentialDataset.toString());
+        loaded.awaitReady();
+        return loaded;
+    }
+
+    private static Map<String, Function<MovieAnalyzer, Object>> queries() {
+        Map<String, Function<MovieAnalyzer, Object>> queries = new LinkedHashMap<>();
+        queries.put("getMovieCountByYear", MovieAnalyzer::getMovieCountByYear);
+        queries.put("getMovieCountByYear.exact", m -> m.getMovieCountByYear(false));
+        queries.put("getMovieCountByYear.estimate", m -> m.getMovieCountByYear(true));
+        queries.put("getMovieCountByGenre", MovieAnalyzer::getMovieCountByGenre);
+        queries.put("getMovieCountByGenre.exact", m -> m.getMovieCountByGenre(false));
+        queries.put("getMovieCountByGenre.estimate", m -> m.getMovieCountByGenre(true));
+        queries.put("getMovieCountByYearAndGenre", MovieAnalyzer::getMovieCountByYearAndGenre);
+        queries.put("getMovieCountByCertificateAndGenre",
+                MovieAnalyzer::getMovieCountByCertificateAndGenre);
+        queries.put("getAverageRatingByDecadeAndGenre",
+                MovieAnalyzer::getAverageRatingByDecadeAndGenre);
+        queries.put("countMoviesBetween", m -> m.countMoviesBetween(1990, 1999));
+        queries.put("countMoviesBetween.genre", m -> m.countMoviesBetween(1990, 1999, "Drama"));
+        queries.put("countMovies", m -> m.countMovies(1994, "Drama", null));
+        queries.put("getCoStarCount", MovieAnalyzer::getCoStarCount);
+        for (String by : List.of("runtime", "overview")) {
+            queries.put("getTopMovies." + by, m -> m.getTopMovies(100, by));
+            queries.put("getTopMovies." + by + ".window", m -> m.getTopMovies(100, by, 1990, 1999));
+        }
+        for (String by : List.of("rating", "gross")) {
+            queries.put("getTopStars." + by, m -> m.getTopStars(100, by));
+            queries.put("getTopStars." + by + ".window", m -> m.getTopStars(100, by, 1990, 1999));
+            queries.put("getTopStars." + by + ".exact", m -> m.getTopStars(100, by, false));
+            queries.put("getTopStars." + by + ".estimate", m -> m.getTopStars(100, by, true));
+        }
+        queries.put("searchMovies", m -> m.searchMovies("Drama", 8.0f, 150));
+        queries.put("searchMovies.page", m -> m.searchMovies("Drama", 8.0f, 150, 50, null));
+        queries.put("searchMoviesStream", m -> m.searchMoviesStream("Drama", 8.0f, 150).toList());
+        queries.put("countSearchResults.exact", m -> m.countSearchResults("Drama", 8.0f, 150,
+                false));
+        queries.put("countSearchResults.estimate", m -> m.countSearchResults("Drama", 8.0f, 150,
+                true));
+        MovieAnalyzer.MovieFilter filter = MovieAnalyzer.MovieFilter.genreIs("Crime")
+                .and(MovieAnalyzer.MovieFilter.yearBetween(1970, 2010))
+                .and(MovieAnalyzer.MovieFilter.certificateIn("A", "R").negate())
+                .and(MovieAnalyzer.MovieFilter.metaScoreAtLeast(60)
+                        .or(MovieAnalyzer.MovieFilter.grossBetween(50_000_000, Long.MAX_VALUE)));
+        queries.put("findMovies", m -> m.findMovies(filter));
+        queries.put("findMovies.top", m -> m.findMovies(filter, 20));
+        List<MovieAnalyzer.BatchQuery> batch = List.of(
+                new MovieAnalyzer.SearchQuery("Drama", 8.0f, 150),
+                new MovieAnalyzer.SearchQuery("Comedy", 7.0f, 120),
+                new MovieAnalyzer.TopMoviesQuery(100, "runtime"),
+                new MovieAnalyzer.TopMoviesQuery(20, "overview"));
+        queries.put("runBatch", m -> m.runBatch(batch));
+        queries.put("groupBy", m -> table(m.groupBy(MovieAnalyzer.KeyColumn.DIRECTOR,
+                MovieAnalyzer.AggregateSpec.count(),
+                MovieAnalyzer.AggregateSpec.of(MovieAnalyzer.Aggregate.AVG,
+                        MovieAnalyzer.Measure.RATING),
+                MovieAnalyzer.AggregateSpec.of(MovieAnalyzer.Aggregate.SUM,
+                        MovieAnalyzer.Measure.GROSS)), 3));
+        queries.put("getDistributions", m -> m.getDistributions(MovieAnalyzer.KeyColumn.GENRE,
+                MovieAnalyzer.Measure.RUNTIME).toString());
+        queries.put("getDistributions.exact", m -> m.getDistributions(
+                MovieAnalyzer.KeyColumn.YEAR, MovieAnalyzer.Measure.NO_OF_VOTES, true).toString());
+        queries.put("getSimilarMovies", m -> m.getSimilarMovies("Movie 7", 10));
+        for (String by : List.of("rating", "gross", "count")) {
+            queries.put("getTopDirectors." + by, m -> m.getTopDirectors(100, by));
+        }
+        queries.put("getDirectorStarCount", MovieAnalyzer::getDirectorStarCount);
+        queries.put("getDirectorFilmography", m -> m.getDirectorFilmography("Director 7"));
+        queries.put("diff", m -> m.diff(m, 10));
+        queries.put("getMemoryUsage", m -> m.getMemoryUsage().total());
+        return queries;
+    }
+
+    private static String method(String query) {
+        int dot = query.indexOf('.');
+        return dot < 0 ? query : query.substring(0, dot);
+    }
+
+    private static Map<String, List<Double>> table(MovieAnalyzer.GroupBy groups, int specs) {
+        Map<String, List<Double>> table = new LinkedHashMap<>();
+        for (String key : groups.keys()) {
+            List<Double> values = new ArrayList<>();
+            for (int spec = 0; spec < specs; spec++) {
+                values.add(groups.get(key, spec));
+            }
+            table.put(key, values);
+        }
+        return table;
+    }
+
+    /**
+     * Generates the rows of a dataset. The stars are skewed, so a few stars are in many movies,
+     * and some values are missing or quoted like in the real dataset.
+     */
+    private static List<String> generateRows(int count, long seed) {
+        Random random = new Random(seed);
+        int stars = Math.max(count / 2, 8);
+        int directors = Math.max(count / 20, 8);
+        List<String> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder row = new StringBuilder("https://example.com/poster/").append(i)
+                    .append(".jpg,");
+            row.append(i % 17 == 0 ? "\"Movie " + i + ", Part 2\"" : "Movie " + i).append(',');
+            row.append(1920 + random.nextInt(104)).append(',');
+            row.append(CERTIFICATES.get(random.nextInt(CERTIFICATES.size()))).append(',');
+            row.append(60 + random.nextInt(150)).append(" min,");
+            List<String> genres = new ArrayList<>(GENRES);
+            Collections.shuffle(genres, random);
+            int genreCount = 1 + random.nextInt(3);
+            String genre = String.join(", ", genres.subList(0, genreCount));
+            row.append(genreCount > 1 ? "\"" + genre + "\"" : genre).append(',');
+            row.append(String.format(Locale.ROOT, "%.1f", (50 + random.nextInt(50)) / 10.0))
+                    .append(',');
+            int words = 5 + random.nextInt(30);
+            for (int w = 0; w < words; w++) {
+                row.append(w == 0 ? "" : " ").append("word").append(random.nextInt(500));
+            }
+            row.append(',');
+            row.append(random.nextInt(10) == 0 ? "" : String.valueOf(30 + random.nextInt(70)))
+                    .append(',');
+            row.append("Director ").append(random.nextInt(directors)).append(',');
+            Set<Integer> cast = new LinkedHashSet<>();
+            while (cast.size() < 4) {
+                double skew = random.nextDouble();
+                cast.add((int) (stars * skew * skew));
+            }
+            for (int star : cast) {
+                row.append("Star ").append(star).append(',');
+            }
+            row.append(25_000 + random.nextInt(2_000_000)).append(',');
+            if (random.nextInt(5) != 0) {
+                row.append(String.format(Locale.US, "\"%,d\"", random.nextInt(900_000_000)));
+            }
+            rows.add(row.toString());
+        }
+        return rows;
+    }
+
+    /**
+     * Times a fixed workload of sorting and hashing, to compare the speed of this machine with the
+     * one that recorded the baseline.
+     */
+    private static long calibrate() {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            int[] values = new Random(7).ints(1 << 20).toArray();
+            Map<String, Integer> counts = new HashMap<>();
+            long start = System.nanoTime();
+            Arrays.sort(values);
+            for (int i = 0; i < 200_000; i++) {
+                counts.merge("key" + (values[i] & 0xffff), 1, Integer::sum);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * Returns the best latency and the fewest bytes allocated by the calling thread of every
+     * query, after a warm-up. The work of the parallel streams and background tasks is not
+     * counted in the allocations.
+     */
+    private static synchronized Map<String, long[]> measurements() {
+        if (measurements == null) {
+            measurements = new LinkedHashMap<>();
+            for (Map.Entry<String, Function<MovieAnalyzer, Object>> query : QUERIES.entrySet()) {
+                long warmup = System.nanoTime();
+                for (int run = 0; run < MAX_WARMUP_RUNS
+                        && System.nanoTime() - warmup < WARMUP_NANOS; run++) {
+                    query.getValue().apply(analyzer);
+                }
+                long nanos = Long.MAX_VALUE;
+                long bytes = Long.MAX_VALUE;
+                for (int run = 0; run < MEASURED_RUNS; run++) {
+                    long allocated = threads.getCurrentThreadAllocatedBytes();
+                    long start = System.nanoTime();
+                    query.getValue().apply(analyzer);
+                    nanos = Math.min(nanos, System.nanoTime() - start);
+                    bytes = Math.min(bytes, threads.getCurrentThreadAllocatedBytes() - allocated);
+                }
+                measurements.put(query.getKey(), new long[]{nanos, bytes});
+            }
+        }
+        return measurements;
+    }
+
+    /** Returns the expected latency of this run, the baseline scaled by the calibration. */
+    private static double expectedNanos(String key) {
+        long recordedCalibration = Long.parseLong(baseline.getProperty("calibration"));
+        return Long.parseLong(baseline.getProperty(key)) * calibrationNanos
+                / (double) recordedCalibration;
+    }
+
+    private static double latencyRatio(long nanos, double expected) {
+        return Math.max(nanos, LATENCY_FLOOR_NANOS) / Math.max(expected, LATENCY_FLOOR_NANOS);
+    }
+
+    private static void assumeBaseline() {
+        assumeTrue(baseline.getProperty("rows", "").equals(String.valueOf(ROWS)),
+                "no baseline for " + ROWS + " rows in " + BASELINE);
+    }
+
+    @Test
+    void everyPublicQueryIsMeasured() {
+        Set<String> measured = QUERIES.keySet().stream().map(MovieAnalyzerPerformanceTest::method)
+                .collect(Collectors.toSet());
+        List<String> errorMessages = new ArrayList<>();
+        for (Method m : MovieAnalyzer.class.getDeclaredMethods()) {
+            if (Modifier.isPublic(m.getModifiers()) && !Modifier.isStatic(m.getModifiers())
+                    && m.getReturnType() != void.class && !NOT_QUERIES.contains(m.getName())
+                    && !measured.contains(m.getName())) {
+                errorMessages.add("The method [" + m.getName() + "] has no performance test!");
+            }
+        }
+        assertTrue(errorMessages.isEmpty(), String.join(System.lineSeparator(), errorMessages));
+    }
+
+    @Test
+    void allocationPerCallIsWithinBudget() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported(),
+                "the JVM does not measure the allocations of a thread");
+        threads.setThreadAllocatedMemoryEnabled(true);
+        List<String> errorMessages = new ArrayList<>();
+        measurements().forEach((query, measurement) -> {
+            recorded.put("allocation." + query, measurement[1]);
+            String budget = baseline.getProperty("allocation." + query);
+            if (UPDATE_BASELINE) {
+                return;
+            }
+            if (budget == null) {
+                errorMessages.add("No allocation baseline for " + query);
+                return;
+            }
+            long limit = Math.max((long) (Long.parseLong(budget) * MAX_ALLOCATION_RATIO),
+                    ALLOCATION_FLOOR_BYTES);
+            if (measurement[1] > limit) {
+                errorMessages.add(String.format("%s allocates %,d bytes per call, budget %,d",
+                        query, measurement[1], limit));
+            }
+        });
+        if (!UPDATE_BASELINE) {
+            assumeBaseline();
+        }
+        assertTrue(errorMessages.isEmpty(), String.join(System.lineSeparator(), errorMessages));
+    }
+
+    @Test
+    void latencyIsWithinBaselineRatio() {
+        List<String> errorMessages = new ArrayList<>();
+        measurements().forEach((query, measurement) -> {
+            recorded.put("latency." + query, measurement[0]);
+            if (UPDATE_BASELINE) {
+                return;
+            }
+            if (baseline.getProperty("latency." + query) == null) {
+                errorMessages.add("No latency baseline for " + query);
+                return;
+            }
+            double expected = expectedNanos("latency." + query);
+            double ratio = latencyRatio(measurement[0], expected);
+            if (ratio > MAX_LATENCY_RATIO) {
+                errorMessages.add(String.format("%s takes %.2f ms, %.1fx the baseline of %.2f ms",
+                        query, measurement[0] / 1e6, ratio, expected / 1e6));
+            }
+        });
+        if (!UPDATE_BASELINE) {
+            assumeBaseline();
+        }
+        assertTrue(errorMessages.isEmpty(), String.join(System.lineSeparator(), errorMessages));
+    }
+
+    @Test
+    void parseTimePerMillionRowsIsWithinBudget() throws Exception {
+        Path snapshot = directory.resolve("movies.snapshot");
+        analyzer.writeSnapshot(snapshot.toString());
+        // only the loaded instance is on the heap while a loader is timed, so the times measure
+        // the loader rather than the collection of a heap filled by the other analyzers
+        analyzer = null;
+        reference = null;
+        try {
+            timeLoaders(snapshot);
+        } finally {
+            analyzer = loadAnalyzer();
+            reference = loadReference();
+        }
+    }
+
+    /**
+     * Times every loader on the dataset and checks the best of its runs against the baseline.
+     */
+    private static void timeLoaders(Path snapshot) throws Exception {
+        Map<String, Callable<Object>> loaders = new LinkedHashMap<>();
+        loaders.put("readMovies", () -> {
+            String path = dataset.toString();
+            try (Stream<MovieAnalyzer.Movie> movies = MovieAnalyzer.readMovies(path)) {
+                return movies.count();
+            }
+        });
+        loaders.put("constructor", () -> new MovieAnalyzer(dataset.toString()));
+        loaders.put("loadPipelined", () -> MovieAnalyzer.loadPipelined(dataset.toString(), 4));
+        loaders.put("fromSnapshot", () -> MovieAnalyzer.fromSnapshot(snapshot.toString()));
+        List<String> errorMessages = new ArrayList<>();
+        for (Map.Entry<String, Callable<Object>> loader : loaders.entrySet()) {
+            long nanos = Long.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                nanos = Math.min(nanos, timeLoad(loader.getValue()));
+            }
+            long perMillionRows = nanos * 1_000_000 / ROWS;
+            recorded.put("parse." + loader.getKey(), perMillionRows);
+            if (UPDATE_BASELINE || baseline.getProperty("parse." + loader.getKey()) == null) {
+                continue;
+            }
+            double budget = expectedNanos("parse." + loader.getKey()) * MAX_LATENCY_RATIO;
+            if (perMillionRows > budget) {
+                errorMessages.add(String.format("%s takes %.0f ms per million rows, budget %.0f ms",
+                        loader.getKey(), perMillionRows / 1e6, budget / 1e6));
+            }
+        }
+        if (!UPDATE_BASELINE) {
+            assumeBaseline();
+        }
+        assertTrue(errorMessages.isEmpty(), String.join(System.lineSeparator(), errorMessages));
+    }
+
+    /**
+     * Times one run of a loader, after collecting what the previous runs left on the heap. The
+     * loaded instance is dropped on return, once its background indexes are built.
+     */
+    private static long timeLoad(Callable<Object> loader) throws Exception {
+        System.gc();
+        long start = System.nanoTime();
+        Object loaded = loader.call();
+        long nanos = System.nanoTime() - start;
+        // let the background indexes finish before the next run is timed
+        if (loaded instanceof MovieAnalyzer movieAnalyzer) {
+            movieAnalyzer.awaitReady();
+        }
+        return nanos;
+    }
+
+    /**
+     * Measures the cost of parsing each numeric field of a row, straight from the characters of
+     * the row, and with the temporary strings of the original parser for comparison. The straight
+     * parsers should not allocate and should be faster than their string counterparts; both costs
+     * are recorded in the baseline to follow them over time.
+     */
+    @Test
+    void fieldParsingIsAllocationFreeAndFasterThanStrings() throws IOException {
+        assumeTrue(threads.isThreadAllocatedMemorySupported()
+                && threads.isCurrentThreadCpuTimeSupported(),
+                "the JVM does not measure the allocations and cpu time of a thread");
+        threads.setThreadAllocatedMemoryEnabled(true);
+        threads.setThreadCpuTimeEnabled(true);
+        List<String> lines;
+        try (Stream<String> all = Files.lines(dataset)) {
+            lines = all.skip(1).limit(FIELD_ROWS).toList();
+        }
+        MovieAnalyzer.CsvRow[] rows = new MovieAnalyzer.CsvRow[lines.size()];
+        String[][] fields = new String[lines.size()][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new MovieAnalyzer.CsvRow().split(lines.get(i));
+            fields[i] = lines.get(i).split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)", -1);
+        }
+        // every parser has its own loop, so the JIT compiles and inlines each one on its own
+        Map<String, LongSupplier> parsers = new LinkedHashMap<>();
+        parsers.put("year", () -> {
+            long sum = 0;
+            for (MovieAnalyzer.CsvRow row : rows) {
+                sum += row.parseInt(2, 0);
+            }
+            return sum;
+        });
+        parsers.put("year.string", () -> {
+            long sum = 0;
+            for (String[] row : fields) {
+                sum += Integer.parseInt(row[2]);
+            }
+            return sum;
+        });
+        parsers.put("runtime", () -> {
+            long sum = 0;
+            for (MovieAnalyzer.CsvRow row : rows) {
+                sum += row.parseInt(4, 4);
+            }
+            return sum;
+        });
+        parsers.put("runtime.string", () -> {
+            long sum = 0;
+            for (String[] row : fields) {
+                sum += Integer.parseInt(row[4].substring(0, row[4].length() - 4));
+            }
+            return sum;
+        });
+        parsers.put("rating", () -> {
+            long sum = 0;
+            for (MovieAnalyzer.CsvRow row : rows) {
+                sum += Float.floatToIntBits(row.parseDecimal(6));
+            }
+            return sum;
+        });
+        parsers.put("rating.string", () -> {
+            long sum = 0;
+            for (String[] row : fields) {
+                sum += Float.floatToIntBits(Float.parseFloat(row[6]));
+            }
+            return sum;
+        });
+        parsers.put("votes", () -> {
+            long sum = 0;
+            for (MovieAnalyzer.CsvRow row : rows) {
+                sum += row.parseInt(14, 0);
+            }
+            return sum;
+        });
+        parsers.put("votes.string", () -> {
+            long sum = 0;
+            for (String[] row : fields) {
+                sum += Integer.parseInt(row[14]);
+            }
+            return sum;
+        });
+        parsers.put("gross", () -> {
+            long sum = 0;
+            for (MovieAnalyzer.CsvRow row : rows) {
+                sum += row.isEmpty(15) ? 0 : row.parseDigits(15);
+            }
+            return sum;
+        });
+        parsers.put("gross.string", () -> {
+            long sum = 0;
+            for (String[] row : fields) {
+                sum += row[15].isEmpty() ? 0
+                        : Long.parseLong(row[15].replace("\"", "").replace(",", ""));
+            }
+            return sum;
+        });
+        List<String> errorMessages = new ArrayList<>();
+        long checksum = 0;
+        for (LongSupplier parser : parsers.values()) {
+            long warmup = System.nanoTime();
+            while (System.nanoTime() - warmup < WARMUP_NANOS) {
+                checksum += parser.getAsLong();
+            }
+        }
+        // the passes of the parsers take turns, so that a slow spell of the machine slows down
+        // all of them alike, and the thread's cpu time leaves out the time the compiler and
+        // collector threads take from it
+        Map<String, Long> nanos = new HashMap<>();
+        Map<String, Long> bytes = new HashMap<>();
+        for (int run = 0; run < MEASURED_FIELD_RUNS; run++) {
+            for (Map.Entry<String, LongSupplier> parser : parsers.entrySet()) {
+                long allocated = threads.getCurrentThreadAllocatedBytes();
+                long start = threads.getCurrentThreadCpuTime();
+                checksum += parser.getValue().getAsLong();
+                nanos.merge(parser.getKey(), threads.getCurrentThreadCpuTime() - start, Math::min);
+                bytes.merge(parser.getKey(), threads.getCurrentThreadAllocatedBytes() - allocated,
+                        Math::min);
+            }
+        }
+        for (String field : parsers.keySet()) {
+            recorded.put("field." + field, nanos.get(field) * 1_000_000 / rows.length);
+            if (!field.endsWith(".string") && bytes.get(field) >= rows.length) {
+                errorMessages.add(String.format("parsing the %s field allocates %,d bytes for %,d "
+                        + "rows", field, bytes.get(field), rows.length));
+            }
+        }
+        // the timings of one JVM are compared with each other, as the compiled code of a loop this
+        // small varies from run to run more than the calibration can account for
+        for (String field : parsers.keySet()) {
+            if (field.endsWith(".string")) {
+                continue;
+            }
+            long straight = recorded.get("field." + field);
+            long viaStrings = recorded.get("field." + field + ".string");
+            if (straight >= viaStrings) {
+                errorMessages.add(String.format("parsing the %s field takes %.1f ns, not less than "
+                        + "the %.1f ns of parsing a String", field, straight / 1e6,
+                        viaStrings / 1e6));
+            }
+        }
+        assertNotEquals(0L, checksum);
+        assertTrue(errorMessages.isEmpty(), String.join(System.lineSeparator(), errorMessages));
+    }
+
+    private static void assertSameResults(String engine, MovieAnalyzer candidate,
+                                          Set<String> skipped) {
+        candidate.awaitReady();
+        for (Map.Entry<String, Function<MovieAnalyzer, Object>> query : QUERIES.entrySet()) {
+            if (!ENGINE_DEPENDENT.contains(query.getKey()) && !skipped.contains(query.getKey())
+                    && !skipped.contains(method(query.getKey()))) {
+                assertEquals(query.getValue().apply(reference), query.getValue().apply(candidate),
+                        engine + " differs from the reference in " + query.getKey());
+            }
+        }
+    }
+
+    @Test
+    void parallelLoadersMatchReference() throws IOException {
+        assertSameResults("fromShards",
+                MovieAnalyzer.fromShards(directory.resolve("shards").toString()), Set.of());
+        assertSameResults("loadPipelined",
+                MovieAnalyzer.loadPipelined(differentialDataset.toString(), 4), Set.of());
+    }
+
+    @Test
+    void snapshotMatchesReference() throws IOException {
+        Path snapshot = directory.resolve("differential.snapshot");
+        reference.writeSnapshot(snapshot.toString());
+        assertSameResults("fromSnapshot", MovieAnalyzer.fromSnapshot(snapshot.toString()),
+                Set.of());
+    }
+
+    @Test
+    void incrementalLoadMatchesReference() throws IOException {
+        MovieAnalyzer incremental = new MovieAnalyzer(directory.resolve("first.csv").toString());
+        incremental.awaitReady();
+        incremental.getTopStars(10, "rating");
+        incremental.addMovies(directory.resolve("second.csv").toString());
+        assertSameResults("addMovies", incremental, Set.of());
+    }
+
+    @Test
+    void scanFallbacksMatchIndexes() {
+        MovieAnalyzer fallback = new MovieAnalyzer(differentialDataset.toString());
+        fallback.awaitReady();
+        fallback.setMemoryBudget(0);
+        for (MovieAnalyzer.IndexKind kind : MovieAnalyzer.IndexKind.values()) {
+            assertFalse(fallback.isIndexReady(kind), kind + " index was not refused");
+        }
+        // without the buckets, all the movies are ranked instead of the candidates
+        assertSameResults("the scan fallbacks", fallback, Set.of("getSimilarMovies"));
+    }
+
+    @Test
+    void columnarFiltersMatchSearch() {
+        for (String genre : GENRES.subList(0, 6)) {
+            for (float minRating : new float[]{6.5f, 8.5f}) {
+                for (int maxRuntime : new int[]{90, 150}) {
+                    String arguments = genre + ", " + minRating + ", " + maxRuntime;
+                    List<String> expected = reference.searchMovies(genre, minRating, maxRuntime);
+                    assertEquals(expected, reference.findMovies(
+                            MovieAnalyzer.MovieFilter.genreIs(genre)
+                                    .and(MovieAnalyzer.MovieFilter.ratingAtLeast(minRating))
+                                    .and(MovieAnalyzer.MovieFilter.runtimeAtMost(maxRuntime))),
+                            "findMovies(" + arguments + ")");
+                    assertEquals(expected, reference.searchMoviesStream(genre, minRating,
+                            maxRuntime).toList(), "searchMoviesStream(" + arguments + ")");
+                    List<String> paged = new ArrayList<>();
+                    String cursor = null;
+                    do {
+                        MovieAnalyzer.SearchPage page = reference.searchMovies(genre, minRating,
+                                maxRuntime, 7, cursor);
+                        paged.addAll(page.titles());
+                        cursor = page.nextCursor();
+                    } while (cursor != null);
+                    assertEquals(expected, paged, "searchMovies pages (" + arguments + ")");
+                    assertEquals(expected.size(), (int) reference.countSearchResults(genre,
+                            minRating, maxRuntime, false).value(),
+                            "countSearchResults(" + arguments + ")");
+                }
+            }
+        }
+    }
+
+    @Test
+    void windowedRankingsOverAllYearsMatchRankings() {
+        for (int topK : new int[]{1, 10, 100, DIFFERENTIAL_ROWS}) {
+            for (String by : List.of("rating", "gross")) {
+                List<String> expected = reference.getTopStars(topK, by);
+                assertEquals(expected, reference.getTopStars(topK, by, Integer.MIN_VALUE,
+                        Integer.MAX_VALUE), "getTopStars(" + topK + ", " + by + ") window");
+                assertEquals(expected, List.copyOf(reference.getTopStars(topK, by, false)
+                        .keySet()), "getTopStars(" + topK + ", " + by + ") exact");
+            }
+            for (String by : List.of("runtime", "overview")) {
+                assertEquals(reference.getTopMovies(topK, by), reference.getTopMovies(topK, by,
+                        Integer.MIN_VALUE, Integer.MAX_VALUE),
+                        "getTopMovies(" + topK + ", " + by + ") window");
+            }
+        }
+    }
+
+    @Test
+    void externalAggregationMatchesInMemory() throws IOException {
+        // small enough to spill many runs
+        long memoryBudget = 256 * 1024;
+        Map<List<String>, Integer> coStars = new HashMap<>();
+        MovieAnalyzer.countCoStarsExternally(differentialDataset.toString(), memoryBudget,
+                coStars::put);
+        assertEquals(reference.getCoStarCount(), coStars, "countCoStarsExternally");
+        for (String by : List.of("rating", "gross")) {
+            assertEquals(reference.getTopStars(100, by), MovieAnalyzer.getTopStarsExternally(
+                    differentialDataset.toString(), 100, by, memoryBudget),
+                    "getTopStarsExternally(" + by + ")");
+        }
+    }
+
+    @Test
+    void batchMatchesSingleQueries() {
+        List<MovieAnalyzer.BatchQuery> queries = new ArrayList<>();
+        List<List<String>> expected = new ArrayList<>();
+        for (String genre : GENRES) {
+            queries.add(new MovieAnalyzer.SearchQuery(genre, 7.5f, 120));
+            expected.add(reference.searchMovies(genre, 7.5f, 120));
+        }
+        for (int topK : new int[]{5, 50, 500}) {
+            for (String by : List.of("runtime", "overview")) {
+                queries.add(new MovieAnalyzer.TopMoviesQuery(topK, by));
+                expected.add(reference.getTopMovies(topK, by));
+            }
+        }
+        assertEquals(expected, reference.runBatch(queries), "runBatch");
+    }
+
+    @Test
+    void exactAggregatesMatchCounts() {
+        Map<Integer, Integer> byYear = reference.getMovieCountByYear();
+        Map<Integer, Integer> exactByYear = new LinkedHashMap<>();
+        reference.getMovieCountByYear(false).forEach((year, estimate) ->
+                exactByYear.put(year, (int) estimate.value()));
+        assertEquals(byYear, exactByYear, "getMovieCountByYear(false)");
+        Map<String, Integer> exactByGenre = new LinkedHashMap<>();
+        reference.getMovieCountByGenre(false).forEach((genre, estimate) ->
+                exactByGenre.put(genre, (int) estimate.value()));
+        assertEquals(reference.getMovieCountByGenre(), exactByGenre,
+                "getMovieCountByGenre(false)");
+        for (int year : byYear.keySet()) {
+            assertEquals(byYear.get(year), reference.countMovies(year, null, null),
+                    "countMovies(" + year + ")");
+            assertEquals(byYear.get(year), reference.countMoviesBetween(year, year),
+                    "countMoviesBetween(" + year + ")");
+        }
+    }
+}
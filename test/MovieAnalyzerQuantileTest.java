@@ -0,0 +1,148 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the quantile sketches of the distributions, which should be exact while they hold every
+ * value and keep a rank error of about 1% beyond, also when they are merged.
+ */
+public class MovieAnalyzerQuantileTest {
+    private static final double MAX_RANK_ERROR = 0.01;
+
+    private static double[] values(int n) {
+        Random random = new Random(1);
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            // a mixture of three normal distributions
+            values[i] = random.nextGaussian() * 10 + (i % 3) * 5;
+        }
+        return values;
+    }
+
+    /**
+     * Returns the distance between the rank of a quantile and the ranks of an estimate of it in
+     * the sorted values, as a fraction of the number of values.
+     */
+    private static double rankError(double[] sorted, double estimate, double q) {
+        int low = 0;
+        while (low < sorted.length && sorted[low] < estimate) {
+            low++;
+        }
+        int high = low;
+        while (high < sorted.length && sorted[high] <= estimate) {
+            high++;
+        }
+        double rank = q * sorted.length;
+        return (rank < low ? low - rank : rank > high ? rank - high : 0) / sorted.length;
+    }
+
+    private static void assertRankError(double[] values, MovieAnalyzer.QuantileSketch sketch) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (int percent = 1; percent < 100; percent++) {
+            double q = percent / 100.0;
+            double error = rankError(sorted, sketch.quantile(q), q);
+            assertTrue(error <= MAX_RANK_ERROR, "rank error " + error + " of quantile " + q);
+        }
+    }
+
+    @Test
+    void smallSketchesAreExact() {
+        List<Double> values = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            values.add((double) i);
+        }
+        Collections.shuffle(values, new Random(1));
+        MovieAnalyzer.QuantileSketch sketch =
+                new MovieAnalyzer.QuantileSketch(MovieAnalyzer.QuantileSketch.DEFAULT_CAPACITY);
+        assertTrue(Double.isNaN(sketch.median()));
+        values.forEach(sketch::add);
+        assertTrue(sketch.isExact());
+        assertEquals(100, sketch.count());
+        // the nearest rank of a quantile q of 100 values is ceil(100 q)
+        assertEquals(1, sketch.quantile(0));
+        assertEquals(50, sketch.median());
+        assertEquals(91, sketch.quantile(0.905));
+        assertEquals(100, sketch.quantile(1));
+        assertArrayEquals(new long[]{9, 90}, sketch.histogram(1, 10, 100));
+    }
+
+    @Test
+    void largeSketchesHaveBoundedRankError() {
+        double[] values = values(200_000);
+        MovieAnalyzer.QuantileSketch sketch =
+                new MovieAnalyzer.QuantileSketch(MovieAnalyzer.QuantileSketch.DEFAULT_CAPACITY);
+        for (double value : values) {
+            sketch.add(value);
+        }
+        assertFalse(sketch.isExact());
+        assertEquals(values.length, sketch.count());
+        assertRankError(values, sketch);
+        long[] bins = sketch.histogram(Double.NEGATIVE_INFINITY, 0, Double.POSITIVE_INFINITY);
+        assertEquals(values.length, bins[0] + bins[1]);
+    }
+
+    @Test
+    void mergedSketchesSummarizeTheUnion() {
+        double[] values = values(200_000);
+        List<MovieAnalyzer.QuantileSketch> parts = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            parts.add(new MovieAnalyzer.QuantileSketch(
+                    MovieAnalyzer.QuantileSketch.DEFAULT_CAPACITY));
+        }
+        for (int i = 0; i < values.length; i++) {
+            parts.get(i % parts.size()).add(values[i]);
+        }
+        MovieAnalyzer.QuantileSketch merged = parts.get(0);
+        parts.subList(1, parts.size()).forEach(merged::merge);
+        assertEquals(values.length, merged.count());
+        assertRankError(values, merged);
+
+        // exact sketches stay exact while the union fits
+        MovieAnalyzer.QuantileSketch low = new MovieAnalyzer.QuantileSketch(1000);
+        MovieAnalyzer.QuantileSketch high = new MovieAnalyzer.QuantileSketch(1000);
+        for (int i = 1; i <= 100; i++) {
+            low.add(i);
+            high.add(100 + i);
+        }
+        low.merge(high);
+        assertTrue(low.isExact());
+        assertEquals(100, low.median());
+        assertEquals(200, low.quantile(1));
+    }
+
+    @Test
+    void distributionsMatchTheExactGroups() {
+        MovieAnalyzer analyzer = new MovieAnalyzer("resources/imdb_top_500.csv");
+        Map<String, MovieAnalyzer.QuantileSketch> sketches =
+                analyzer.getDistributions(MovieAnalyzer.KeyColumn.GENRE,
+                        MovieAnalyzer.Measure.RUNTIME);
+        Map<String, MovieAnalyzer.QuantileSketch> exact =
+                analyzer.getDistributions(MovieAnalyzer.KeyColumn.GENRE,
+                        MovieAnalyzer.Measure.RUNTIME, true);
+        assertEquals(List.copyOf(analyzer.getMovieCountByGenre().keySet()).stream().sorted()
+                .toList(), List.copyOf(sketches.keySet()));
+        assertEquals(exact.keySet(), sketches.keySet());
+        for (Map.Entry<String, MovieAnalyzer.QuantileSketch> entry : sketches.entrySet()) {
+            MovieAnalyzer.QuantileSketch expected = exact.get(entry.getKey());
+            MovieAnalyzer.QuantileSketch sketch = entry.getValue();
+            assertTrue(expected.isExact());
+            assertEquals((long) analyzer.getMovieCountByGenre().get(entry.getKey()),
+                    sketch.count(), entry.getKey());
+            if (sketch.isExact()) {
+                for (double q : new double[]{0, 0.25, 0.5, 0.9, 1}) {
+                    assertEquals(expected.quantile(q), sketch.quantile(q), entry.getKey());
+                }
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> exact.get("Drama").quantile(1.5));
+        assertThrows(IllegalArgumentException.class, () -> new MovieAnalyzer.QuantileSketch(1));
+    }
+}
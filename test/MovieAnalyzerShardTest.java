@@ -0,0 +1,96 @@
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the loading of a dataset partitioned into shards, whose partial aggregates are merged.
+ */
+public class MovieAnalyzerShardTest {
+    private static final String DATASET = MovieAnalyzerTestFiles.DATASET;
+    private static final int SHARDS = 3;
+
+    private static Path directory;
+    private static MovieAnalyzer imdbTop;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        List<String> rows = MovieAnalyzerTestFiles.datasetRows();
+        directory = Files.createTempDirectory("shards");
+        // the rows are dealt to the shards, so every shard has movies of every period
+        List<List<String>> shards = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            shards.add(new ArrayList<>());
+        }
+        for (int row = 1; row <= rows.size(); row++) {
+            shards.get(row % SHARDS).add(rows.get(row - 1));
+        }
+        // an empty shard (of a region without movies this year) adds nothing
+        shards.add(List.of());
+        for (int i = 0; i < shards.size(); i++) {
+            MovieAnalyzerTestFiles.writeCsv(directory.resolve("movies-" + i + ".csv"),
+                    shards.get(i));
+        }
+        imdbTop = new MovieAnalyzer(DATASET);
+        imdbTop.awaitReady();
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        MovieAnalyzerTestFiles.deleteDirectory(directory);
+    }
+
+    private static void assertSameAggregates(MovieAnalyzer sharded) {
+        assertEquals(imdbTop.movieList.size(), sharded.movieList.size());
+        assertEquals(imdbTop.getMovieCountByYear(), sharded.getMovieCountByYear());
+        assertEquals(imdbTop.getMovieCountByGenre(), sharded.getMovieCountByGenre());
+        assertEquals(imdbTop.getCoStarCount(), sharded.getCoStarCount());
+        for (String by : new String[]{"rating", "gross"}) {
+            assertEquals(imdbTop.getTopStars(50, by), sharded.getTopStars(50, by), by);
+            assertEquals(imdbTop.getTopStars(50, by, false), sharded.getTopStars(50, by, false),
+                    by);
+        }
+        for (int fromYear = 1920; fromYear <= 2020; fromYear += 10) {
+            assertEquals(imdbTop.countMoviesBetween(fromYear, fromYear + 15),
+                    sharded.countMoviesBetween(fromYear, fromYear + 15), "from " + fromYear);
+            assertEquals(imdbTop.countMoviesBetween(fromYear, fromYear + 15, "Drama"),
+                    sharded.countMoviesBetween(fromYear, fromYear + 15, "Drama"),
+                    "Drama from " + fromYear);
+        }
+    }
+
+    @Test
+    void mergedAggregatesMatchTheWholeDataset() throws IOException {
+        MovieAnalyzer sharded = MovieAnalyzer.fromShards(directory.toString());
+        sharded.awaitReady();
+        assertSameAggregates(sharded);
+    }
+
+    @Test
+    void globSelectsShards() throws IOException {
+        MovieAnalyzer sharded = MovieAnalyzer.fromShards(directory.resolve("movies-*.csv")
+                .toString());
+        sharded.awaitReady();
+        assertSameAggregates(sharded);
+        MovieAnalyzer first = MovieAnalyzer.fromShards(directory.resolve("movies-0.csv")
+                .toString());
+        assertEquals(imdbTop.movieList.size() / SHARDS, first.movieList.size());
+    }
+
+    @Test
+    void noShardsGiveAnEmptyDataset() throws IOException {
+        MovieAnalyzer empty = MovieAnalyzer.fromShards(directory.resolve("none-*.csv").toString());
+        empty.awaitReady();
+        assertTrue(empty.movieList.isEmpty());
+        assertTrue(empty.getMovieCountByYear().isEmpty());
+        assertTrue(empty.getCoStarCount().isEmpty());
+        assertEquals(0, empty.countMoviesBetween(Integer.MIN_VALUE, Integer.MAX_VALUE));
+    }
+}
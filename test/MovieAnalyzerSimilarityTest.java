@@ -0,0 +1,79 @@
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the similar movies, ranked among the candidates of the LSH buckets, or among all the
+ * movies without the similarity index.
+ */
+public class MovieAnalyzerSimilarityTest {
+    private static MovieAnalyzer imdbTop;
+    private static Path crafted;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        imdbTop = new MovieAnalyzer(MovieAnalyzerTestFiles.DATASET);
+        imdbTop.awaitReady();
+        // the same genre, rating, year and runtime, so only the shared stars and director differ
+        String row = "p,%s,2000,A,120 min,Drama,8.0,Overview,80,%s,%s,%s,%s,%s,1000,\"1,000\"";
+        crafted = MovieAnalyzerTestFiles.tempCsv("similar", List.of(
+                String.format(row, "Movie", "Director", "S1", "S2", "S3", "S4"),
+                String.format(row, "Three stars", "Director", "S1", "S2", "S3", "X1"),
+                String.format(row, "Two stars", "Other", "S1", "S2", "X2", "X3"),
+                String.format(row, "One star", "Other", "S1", "X4", "X5", "X6"),
+                String.format(row, "No star", "Other", "X7", "X8", "X9", "X10"),
+                String.format(row, "Also no star", "Other", "X11", "X12", "X13", "X14")));
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        Files.delete(crafted);
+    }
+
+    @Test
+    void rankingFollowsSharedFeatures() {
+        MovieAnalyzer analyzer = new MovieAnalyzer(crafted.toString());
+        assertEquals(List.of("Three stars", "Two stars", "One star", "Also no star", "No star"),
+                analyzer.getSimilarMovies("Movie", 10));
+        assertEquals(List.of("Three stars", "Two stars"), analyzer.getSimilarMovies("Movie", 2));
+    }
+
+    @Test
+    void sequelsAreSimilar() {
+        List<String> similar = imdbTop.getSimilarMovies("The Dark Knight", 5);
+        assertEquals(5, similar.size());
+        assertFalse(similar.contains("The Dark Knight"));
+        assertTrue(similar.containsAll(List.of("Batman Begins", "The Dark Knight Rises")),
+                similar.toString());
+    }
+
+    @Test
+    void candidatesHaveHighRecall() {
+        double recall = imdbTop.measureSimilarMoviesRecall(10, 200);
+        assertTrue(recall >= 0.85, "recall@10 " + recall);
+        // without the index all the movies are ranked, and the candidates are ranked alike
+        MovieAnalyzer exhaustive = new MovieAnalyzer(MovieAnalyzerTestFiles.DATASET);
+        exhaustive.awaitReady();
+        exhaustive.setMemoryBudget(0);
+        List<String> exact = exhaustive.getSimilarMovies("Inception", 10);
+        List<String> candidates = imdbTop.getSimilarMovies("Inception", 10);
+        assertEquals(10, exact.size());
+        assertEquals(exact.stream().filter(candidates::contains).toList(),
+                candidates.stream().filter(exact::contains).toList());
+    }
+
+    @Test
+    void unknownTitlesAndEmptyRankings() {
+        assertEquals(List.of(), imdbTop.getSimilarMovies("No such movie", 10));
+        assertEquals(List.of(), imdbTop.getSimilarMovies("Inception", 0));
+        assertThrows(IllegalArgumentException.class,
+                () -> imdbTop.getSimilarMovies("Inception", -1));
+    }
+}
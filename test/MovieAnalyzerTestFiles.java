@@ -0,0 +1,75 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * The csv files of the tests: the IMDB dataset, and the temporary files written from its rows or
+ * from crafted rows under the same header.
+ */
+final class MovieAnalyzerTestFiles {
+    static final String DATASET = "resources/imdb_top_500.csv";
+    static final String HEADER = "Poster_Link,Series_Title,Released_Year,Certificate,"
+            + "Runtime,Genre,IMDB_Rating,Overview,Meta_score,Director,Star1,Star2,Star3,Star4,"
+            + "No_of_Votes,Gross";
+
+    private MovieAnalyzerTestFiles() {
+    }
+
+    /**
+     * Returns the rows of the dataset, without its header.
+     */
+    static List<String> datasetRows() throws IOException {
+        List<String> lines = Files.readAllLines(Path.of(DATASET), StandardCharsets.UTF_8);
+        return lines.subList(1, lines.size());
+    }
+
+    /**
+     * Returns the rows of the dataset repeated a number of times, without the header.
+     */
+    static List<String> repeatedRows(int copies) throws IOException {
+        List<String> rows = datasetRows();
+        List<String> repeated = new ArrayList<>(rows.size() * copies);
+        for (int i = 0; i < copies; i++) {
+            repeated.addAll(rows);
+        }
+        return repeated;
+    }
+
+    /**
+     * Writes the header and the rows to a csv file.
+     */
+    static Path writeCsv(Path file, List<String> rows) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            for (String row : rows) {
+                writer.newLine();
+                writer.write(row);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Writes the header and the rows to a new temporary csv file, which the caller deletes.
+     */
+    static Path tempCsv(String prefix, List<String> rows) throws IOException {
+        return writeCsv(Files.createTempFile(prefix, ".csv"), rows);
+    }
+
+    /**
+     * Deletes a temporary directory and the files in it.
+     */
+    static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
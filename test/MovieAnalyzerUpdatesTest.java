@@ -0,0 +1,165 @@
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the publishers of aggregate updates: the changes of the top stars, the demand of the
+ * subscribers and the coalescing of the updates they have not requested yet.
+ */
+public class MovieAnalyzerUpdatesTest {
+    private static final int BATCHES = 3;
+    private static final int BATCH_SIZE = 100;
+
+    private static final List<Path> files = new ArrayList<>();
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        List<String> rows = MovieAnalyzerTestFiles.datasetRows();
+        // the first file holds the movies before the batches
+        int from = 0;
+        for (int i = 0; i <= BATCHES; i++) {
+            int to = i == 0 ? rows.size() - BATCHES * BATCH_SIZE : from + BATCH_SIZE;
+            files.add(MovieAnalyzerTestFiles.tempCsv("updates", rows.subList(from, to)));
+            from = to;
+        }
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        for (Path file : files) {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * A subscriber that queues what it receives.
+     */
+    private static final class Recorder implements Flow.Subscriber<MovieAnalyzer.AggregateUpdate> {
+        private final BlockingQueue<MovieAnalyzer.AggregateUpdate> updates =
+                new LinkedBlockingQueue<>();
+        private final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<>();
+        private Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(MovieAnalyzer.AggregateUpdate update) {
+            updates.add(update);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            errors.add(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            fail("the publisher never completes");
+        }
+
+        MovieAnalyzer.AggregateUpdate next() throws InterruptedException {
+            MovieAnalyzer.AggregateUpdate update = updates.poll(10, TimeUnit.SECONDS);
+            assertNotNull(update, "no update was delivered");
+            return update;
+        }
+    }
+
+    private static MovieAnalyzer analyzer() {
+        MovieAnalyzer analyzer = new MovieAnalyzer(files.get(0).toString());
+        analyzer.awaitReady();
+        return analyzer;
+    }
+
+    @Test
+    void updatesFollowTheTopStars() throws Exception {
+        MovieAnalyzer analyzer = analyzer();
+        // other publishers and subscribers over the same rankings
+        for (String by : List.of("rating", "gross")) {
+            Recorder recorder = new Recorder();
+            analyzer.getUpdates(20, by).subscribe(recorder);
+            recorder.subscription.request(Long.MAX_VALUE);
+        }
+        Recorder recorder = new Recorder();
+        analyzer.getUpdates(20, "rating").subscribe(recorder);
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertSame(analyzer.getUpdates(20, "rating"), analyzer.getUpdates(20, "rating"));
+
+        Set<String> top = new HashSet<>(analyzer.getTopStars(20, "rating"));
+        for (int i = 1; i <= BATCHES; i++) {
+            analyzer.addMovies(files.get(i).toString());
+            MovieAnalyzer.AggregateUpdate update = recorder.next();
+            assertEquals(BATCH_SIZE, update.movies());
+            assertTrue(top.containsAll(update.left()), "left " + update.left());
+            update.left().forEach(top::remove);
+            assertTrue(update.entered().stream().noneMatch(top::contains),
+                    "entered " + update.entered());
+            top.addAll(update.entered());
+            List<String> ranked = analyzer.getTopStars(20, "rating");
+            assertEquals(new HashSet<>(ranked), top, "batch " + i);
+            assertEquals(ranked.stream().filter(update.entered()::contains).toList(),
+                    update.entered(), "batch " + i);
+        }
+    }
+
+    @Test
+    void updatesWithoutDemandAreCoalesced() throws Exception {
+        MovieAnalyzer analyzer = analyzer();
+        Recorder recorder = new Recorder();
+        analyzer.getUpdates(10, "gross").subscribe(recorder);
+        List<String> before = analyzer.getTopStars(10, "gross");
+        for (int i = 1; i <= BATCHES; i++) {
+            analyzer.addMovies(files.get(i).toString());
+        }
+        assertNull(recorder.updates.poll(100, TimeUnit.MILLISECONDS), "delivered without demand");
+
+        recorder.subscription.request(1);
+        MovieAnalyzer.AggregateUpdate update = recorder.next();
+        assertEquals(BATCHES * BATCH_SIZE, update.movies());
+        assertEquals(BATCHES * BATCH_SIZE,
+                update.yearDeltas().values().stream().mapToInt(Integer::intValue).sum());
+        Set<String> top = new HashSet<>(before);
+        update.left().forEach(top::remove);
+        top.addAll(update.entered());
+        assertEquals(new HashSet<>(analyzer.getTopStars(10, "gross")), top);
+
+        // the demand left over is used by the next update
+        recorder.subscription.request(2);
+        assertNull(recorder.updates.poll(100, TimeUnit.MILLISECONDS), "delivered without a batch");
+        analyzer.addMovies(files.get(1).toString());
+        assertEquals(BATCH_SIZE, recorder.next().movies());
+    }
+
+    @Test
+    void invalidRequestsAndArguments() throws Exception {
+        MovieAnalyzer analyzer = analyzer();
+        Recorder recorder = new Recorder();
+        analyzer.getUpdates(5, "rating").subscribe(recorder);
+        recorder.subscription.request(0);
+        Throwable error = recorder.errors.poll(10, TimeUnit.SECONDS);
+        assertTrue(error instanceof IllegalArgumentException, String.valueOf(error));
+        // a failed subscription is cancelled
+        analyzer.addMovies(files.get(1).toString());
+        recorder.subscription.request(1);
+        assertNull(recorder.updates.poll(100, TimeUnit.MILLISECONDS));
+
+        assertThrows(IllegalArgumentException.class, () -> analyzer.getUpdates(-1, "rating"));
+        assertThrows(IllegalArgumentException.class, () -> analyzer.getUpdates(5, "count"));
+    }
+}
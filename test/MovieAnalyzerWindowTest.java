@@ -0,0 +1,89 @@
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the rankings over a window of release years, which should match the rankings of a
+ * dataset of the movies of the window only.
+ */
+public class MovieAnalyzerWindowTest {
+    private static List<String> rows;
+    private static MovieAnalyzer imdbTop;
+    private static Path window;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        rows = MovieAnalyzerTestFiles.datasetRows();
+        imdbTop = new MovieAnalyzer(MovieAnalyzerTestFiles.DATASET);
+        window = Files.createTempFile("window", ".csv");
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        Files.delete(window);
+    }
+
+    /**
+     * Returns an analyzer of the movies released between two years.
+     */
+    private static MovieAnalyzer moviesBetween(int fromYear, int toYear) throws IOException {
+        List<String> selected = new ArrayList<>();
+        for (String line : rows) {
+            MovieAnalyzer.CsvRow row = new MovieAnalyzer.CsvRow().split(line);
+            if (!row.isEmpty(2) && row.parseInt(2, 0) >= fromYear
+                    && row.parseInt(2, 0) <= toYear) {
+                selected.add(line);
+            }
+        }
+        MovieAnalyzerTestFiles.writeCsv(window, selected);
+        return new MovieAnalyzer(window.toString());
+    }
+
+    @Test
+    void topStarsMatchTheMoviesOfTheWindow() throws IOException {
+        for (int fromYear = 1920; fromYear <= 2020; fromYear += 9) {
+            for (int length : new int[]{0, 4, 25}) {
+                MovieAnalyzer expected = moviesBetween(fromYear, fromYear + length);
+                for (String by : new String[]{"rating", "gross"}) {
+                    assertEquals(expected.getTopStars(15, by),
+                            imdbTop.getTopStars(15, by, fromYear, fromYear + length),
+                            by + " from " + fromYear + " to " + (fromYear + length));
+                }
+            }
+        }
+    }
+
+    @Test
+    void windowsWithoutMoviesAreEmpty() {
+        assertEquals(List.of(), imdbTop.getTopStars(10, "rating", 1700, 1800));
+        assertEquals(List.of(), imdbTop.getTopStars(10, "rating", 2000, 1990));
+        assertEquals(List.of(), imdbTop.getTopStars(0, "gross", 1900, 2100));
+        assertEquals(List.of(), imdbTop.getTopStars(10, "gross", Integer.MAX_VALUE,
+                Integer.MAX_VALUE));
+    }
+
+    @Test
+    void invalidArgumentsAreRejected() {
+        // the windowed rankings reject what the rankings of the whole dataset reject
+        assertThrows(IllegalArgumentException.class, () -> imdbTop.getTopStars(10, "count"));
+        assertThrows(IllegalArgumentException.class, () -> imdbTop.getTopStars(-1, "rating"));
+        assertThrows(IllegalArgumentException.class,
+                () -> imdbTop.getTopStars(10, "count", 1990, 2000));
+        assertThrows(IllegalArgumentException.class,
+                () -> imdbTop.getTopStars(-1, "rating", 1990, 2000));
+        assertThrows(IllegalArgumentException.class,
+                () -> imdbTop.getTopMovies(10, "rating", 1990, 2000));
+        assertThrows(IllegalArgumentException.class,
+                () -> imdbTop.getTopMovies(-1, "runtime", 1990, 2000));
+        assertThrows(IllegalArgumentException.class, () -> imdbTop.getTopDirectors(10, "votes"));
+        assertThrows(IllegalArgumentException.class, () -> imdbTop.getTopDirectors(-1, "count"));
+    }
+}
@@ -0,0 +1,54 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the range counts of release years.
+ */
+public class MovieAnalyzerYearIndexTest {
+    private static MovieAnalyzer imdbTop;
+    private static Map<Integer, Integer> countByYear;
+
+    @BeforeAll
+    static void setUp() {
+        imdbTop = new MovieAnalyzer("resources/imdb_top_500.csv");
+        countByYear = imdbTop.getMovieCountByYear();
+    }
+
+    private static int expectedCount(long fromYear, long toYear) {
+        return countByYear.entrySet().stream()
+                .filter(entry -> entry.getKey() >= fromYear && entry.getKey() <= toYear)
+                .mapToInt(Map.Entry::getValue).sum();
+    }
+
+    @Test
+    void rangesMatchCountsByYear() {
+        for (int fromYear = 1915; fromYear <= 2025; fromYear += 7) {
+            for (int toYear = fromYear - 3; toYear <= 2025; toYear += 11) {
+                assertEquals(expectedCount(fromYear, toYear),
+                        imdbTop.countMoviesBetween(fromYear, toYear),
+                        "countMoviesBetween(" + fromYear + ", " + toYear + ")");
+            }
+        }
+    }
+
+    @Test
+    void extremeBoundsDoNotOverflow() {
+        assertEquals(500, imdbTop.countMoviesBetween(Integer.MIN_VALUE, Integer.MAX_VALUE));
+        assertEquals(500, imdbTop.countMoviesBetween(0, Integer.MAX_VALUE));
+        assertEquals(expectedCount(Integer.MIN_VALUE, 1999),
+                imdbTop.countMoviesBetween(Integer.MIN_VALUE, 1999));
+        assertEquals(0, imdbTop.countMoviesBetween(Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertEquals(0, imdbTop.countMoviesBetween(Integer.MIN_VALUE, Integer.MIN_VALUE));
+        assertEquals(imdbTop.getMovieCountByGenre().get("Drama"),
+                imdbTop.countMoviesBetween(Integer.MIN_VALUE, Integer.MAX_VALUE, "Drama"));
+    }
+
+    @Test
+    void unknownGenreCountsNothing() {
+        assertEquals(0, imdbTop.countMoviesBetween(1900, 2100, "Unknown"));
+    }
+}